@@ -0,0 +1,48 @@
+package Fluo_Ratio_Bact_Bg_Benchmarks;
+import Fluo_Ratio_Bact_Bg.Tools;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Automatic background estimation of a fluo frame (lowest median of the rois scrolled over the image)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BackgroundBenchmark {
+
+    @Param({"512", "1024", "2048"})
+    public int size;
+
+    @Param({"100", "1000", "5000"})
+    public int nBacteria;
+
+    @Param({"median", "mean"})
+    public String method;
+
+    private final Tools tools = new Tools();
+    private SyntheticFrames frames;
+
+
+    @Setup
+    public void setup() {
+        frames = new SyntheticFrames(size, nBacteria, 42);
+    }
+
+
+    @Benchmark
+    public double findRoiBackgroundAuto() {
+        return(tools.findRoiBackgroundAuto(frames.fluo, 100, method));
+    }
+}
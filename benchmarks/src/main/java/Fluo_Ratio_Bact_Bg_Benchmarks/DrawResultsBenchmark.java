@@ -0,0 +1,64 @@
+package Fluo_Ratio_Bact_Bg_Benchmarks;
+import Fluo_Ratio_Bact_Bg.Tools;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.image3d.ImageHandler;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Overlay of the bacteria on the phase frame saved as a TIFF (to a temporary folder, overwritten at each call)
+// Outside Fiji the "glasbey on dark" LUT is not installed, the overlay is then saved with the default LUT
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DrawResultsBenchmark {
+
+    @Param({"512", "1024", "2048"})
+    public int size;
+
+    @Param({"100", "1000", "5000"})
+    public int nBacteria;
+
+    private final Tools tools = new Tools();
+    private SyntheticFrames frames;
+    private Objects3DIntPopulation pop;
+    private File outDir;
+
+
+    @Setup
+    public void setup() throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        frames = new SyntheticFrames(size, nBacteria, 42);
+        pop = new Objects3DIntPopulation(ImageHandler.wrap(frames.mask));
+        outDir = Files.createTempDirectory("draw_results").toFile();
+    }
+
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(outDir);
+    }
+
+
+    @Benchmark
+    public void drawResults() {
+        tools.drawResults(frames.phase, frames.fluo, pop, outDir.getPath() + File.separator + "image", outDir.getPath(), 1);
+    }
+}
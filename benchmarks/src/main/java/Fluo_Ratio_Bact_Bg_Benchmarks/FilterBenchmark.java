@@ -0,0 +1,57 @@
+package Fluo_Ratio_Bact_Bg_Benchmarks;
+import java.util.concurrent.TimeUnit;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.Objects3DIntPopulationComputation;
+import mcib3d.image3d.ImageHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Population from an Omnipose label mask, excluding objects touching borders and filtering them by size,
+// the same calls as Tools.filterBacteria (size bounds in pixels, as they are after dividing by the pixel surface)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilterBenchmark {
+
+    @Param({"512", "1024", "2048"})
+    public int size;
+
+    @Param({"100", "1000", "5000"})
+    public int nBacteria;
+
+    private SyntheticFrames frames;
+
+
+    @Setup
+    public void setup() {
+        frames = new SyntheticFrames(size, nBacteria, 42);
+    }
+
+
+    @Benchmark
+    public Objects3DIntPopulation population() {
+        return(new Objects3DIntPopulation(ImageHandler.wrap(frames.mask)));
+    }
+
+
+    @Benchmark
+    public Objects3DIntPopulation filterBacteria() {
+        Objects3DIntPopulation pop = new Objects3DIntPopulation(ImageHandler.wrap(frames.mask));
+        pop = new Objects3DIntPopulationComputation(pop).getExcludeBorders(ImageHandler.wrap(frames.mask), false);
+        pop = new Objects3DIntPopulationComputation(pop).getFilterSize(5, 1000);
+        pop.resetLabels();
+        return(pop);
+    }
+}
@@ -0,0 +1,77 @@
+package Fluo_Ratio_Bact_Bg_Benchmarks;
+import Fluo_Ratio_Bact_Bg.ColumnarResultsSink;
+import Fluo_Ratio_Bact_Bg.FrameResults;
+import Fluo_Ratio_Bact_Bg.Tools;
+import Fluo_Ratio_Bact_Bg.TsvResultsSink;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.image3d.ImageHandler;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Measurement of the bacteria of a frame and writing of the results tables (to null streams, disk speed is left out)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResultsBenchmark {
+
+    @Param({"512", "1024", "2048"})
+    public int size;
+
+    @Param({"100", "1000", "5000"})
+    public int nBacteria;
+
+    private final Tools tools = new Tools();
+    private SyntheticFrames frames;
+    private Objects3DIntPopulation pop;
+    private FrameResults results;
+    private TsvResultsSink tsvSink;
+    private ColumnarResultsSink columnarSink;
+
+
+    @Setup
+    public void setup() {
+        frames = new SyntheticFrames(size, nBacteria, 42);
+        tools.cal.pixelWidth = tools.cal.pixelHeight = 0.065;
+        tools.cal.pixelDepth = 1;
+        frames.phase.setCalibration(tools.cal);
+        pop = new Objects3DIntPopulation(ImageHandler.wrap(frames.mask));
+        results = tools.measureResults(pop, frames.phase, frames.fluo, 300, "image", 1);
+        tsvSink = new TsvResultsSink(new NullOutputStream(), new NullOutputStream());
+        columnarSink = new ColumnarResultsSink(new NullOutputStream(), new NullOutputStream());
+    }
+
+
+    @Benchmark
+    public FrameResults measureResults() {
+        return(tools.measureResults(pop, frames.phase, frames.fluo, 300, "image", 1));
+    }
+
+
+    @Benchmark
+    public void writeTsv() throws IOException {
+        tsvSink.write(results);
+        tsvSink.flush();
+    }
+
+
+    @Benchmark
+    public void writeColumnar() throws IOException {
+        columnarSink.write(results);
+        columnarSink.flush();
+    }
+}
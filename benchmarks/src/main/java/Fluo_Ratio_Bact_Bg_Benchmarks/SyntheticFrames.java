@@ -0,0 +1,54 @@
+package Fluo_Ratio_Bact_Bg_Benchmarks;
+import ij.ImagePlus;
+import ij.process.ShortProcessor;
+import java.util.Random;
+
+// Synthetic 16-bit frames for the benchmarks: nBacteria rod-shaped bacteria laid out on a jittered grid
+// (so that they do not overlap), as a label mask, a phase contrast plane (dark bacteria on a bright noisy background)
+// and a fluo plane (bright bacteria on a dim uneven background)
+// Generation is seeded, so that every benchmark run measures the same frames
+public class SyntheticFrames {
+
+    public final ImagePlus mask, phase, fluo;
+
+
+    public SyntheticFrames(int size, int nBacteria, long seed) {
+        Random random = new Random(seed);
+        ShortProcessor labels = new ShortProcessor(size, size);
+        ShortProcessor phaseIp = new ShortProcessor(size, size);
+        ShortProcessor fluoIp = new ShortProcessor(size, size);
+        for (int y = 0; y < size; y++)
+            for (int x = 0; x < size; x++) {
+                phaseIp.set(x, y, (int) (3000 + 150*random.nextGaussian()));
+                fluoIp.set(x, y, (int) (200 + 100.0*x/size + 20*random.nextGaussian()));
+            }
+
+        int gridSize = (int) Math.ceil(Math.sqrt(nBacteria));
+        double cell = (double) size / gridSize;
+        double halfLength = Math.min(0.4*cell, 12);
+        double halfWidth = Math.min(0.18*cell, 4);
+        for (int b = 0; b < nBacteria; b++) {
+            double cx = (b % gridSize + 0.5)*cell + 0.05*cell*(2*random.nextDouble() - 1);
+            double cy = (b / gridSize + 0.5)*cell + 0.05*cell*(2*random.nextDouble() - 1);
+            double angle = Math.PI*random.nextDouble();
+            double cos = Math.cos(angle), sin = Math.sin(angle);
+            int fluoLevel = 600 + random.nextInt(2000);
+            int r = (int) Math.ceil(halfLength + halfWidth);
+            for (int y = Math.max(0, (int) cy - r); y <= Math.min(size - 1, (int) cy + r); y++)
+                for (int x = Math.max(0, (int) cx - r); x <= Math.min(size - 1, (int) cx + r); x++) {
+                    // Rod: distance to the axis segment smaller than the half width
+                    double u = (x - cx)*cos + (y - cy)*sin;
+                    double v = -(x - cx)*sin + (y - cy)*cos;
+                    double du = Math.max(0, Math.abs(u) - (halfLength - halfWidth));
+                    if (du*du + v*v <= halfWidth*halfWidth) {
+                        labels.set(x, y, b + 1);
+                        phaseIp.set(x, y, (int) (1200 + 100*random.nextGaussian()));
+                        fluoIp.set(x, y, (int) (fluoLevel + 50*random.nextGaussian()));
+                    }
+                }
+        }
+        mask = new ImagePlus("mask", labels);
+        phase = new ImagePlus("phase", phaseIp);
+        fluo = new ImagePlus("fluo", fluoIp);
+    }
+}
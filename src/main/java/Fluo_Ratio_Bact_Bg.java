@@ -1,27 +1,20 @@
+import Fluo_Ratio_Bact_Bg.AnalysisPipeline;
+import Fluo_Ratio_Bact_Bg.ResultsSink;
+import Fluo_Ratio_Bact_Bg.RunManifest;
 import Fluo_Ratio_Bact_Bg.Tools;
 import ij.*;
-import ij.plugin.Duplicator;
 import ij.plugin.PlugIn;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import loci.common.services.DependencyException;
-import loci.common.services.ServiceException;
 import loci.common.services.ServiceFactory;
-import loci.formats.FormatException;
 import loci.formats.meta.IMetadata;
 import loci.formats.services.OMEXMLService;
-import loci.plugins.BF;
 import loci.plugins.util.ImageProcessorReader;
-import loci.plugins.in.ImporterOptions;
-import mcib3d.geom2.Objects3DIntPopulation;
-import org.apache.commons.io.FilenameUtils;
 import org.scijava.util.ArrayUtils;
 
 
@@ -30,8 +23,7 @@ public class Fluo_Ratio_Bact_Bg implements PlugIn {
     Tools tools = new Tools();
     private String imageDir = "";
     public String outDirResults = "";
-    public BufferedWriter fluoResults;
-    public BufferedWriter shapeResults;
+    private RunManifest manifest = null;
    
     
     public void run(String arg) {
@@ -60,23 +52,6 @@ public class Fluo_Ratio_Bact_Bg implements PlugIn {
             if (!Files.exists(Paths.get(outDirResults))) {
                 outDir.mkdir();
             }
-            // Write header in results file
-            String header = "Image name\tFrame number\t Bacterium ID\tBacterium surface (µm2)\tBacterium length (µm)\tBacterium intensity"
-                    +"\tBackground intensity \tBacterium intensity / Background intensity\n";
-            FileWriter fwFluoResults = new FileWriter(outDirResults + "fluo_results.xls", false);
-            fluoResults = new BufferedWriter(fwFluoResults);
-            fluoResults.write(header);
-            fluoResults.flush();
-                    
-            header = "Image name\tFrame number\tBact ID\t Bacterium area\tBacterium feret\t"
-                    + "Bacterium feret min\tBacterium cicularity\t"
-                    + "Bacterium aspect ratio\t"+ "Bacterium roundness\n";
-            
-            FileWriter fwShapeResults = new FileWriter(outDirResults + "shape_results.xls", false);
-            shapeResults = new BufferedWriter(fwShapeResults);
-            shapeResults.write(header);
-            shapeResults.flush();
-            
             // Create OME-XML metadata store of the latest schema version
             ServiceFactory factory = new ServiceFactory();
             OMEXMLService service = factory.getInstance(OMEXMLService.class);
@@ -97,56 +72,40 @@ public class Fluo_Ratio_Bact_Bg implements PlugIn {
                 IJ.showMessage("Error", "Plugin canceled");
                 return;
             }
+            
+            // Write header in results file, or go on with the results of an interrupted run with the same settings
+            manifest = RunManifest.open(outDirResults, tools.analysisSettings(chs), ResultsSink.files(tools.binaryResults));
+            ResultsSink results = ResultsSink.open(tools.binaryResults, manifest);
+            
+            // Masks of frames already segmented in previous runs
+            tools.openMaskCache();
+            
+            // Start the segmentation, Omnipose model is loaded once for all images (one process per image analyzed in parallel)
+            tools.startSegmentation();
 
-            for (String f : imageFiles) {
-                reader.setId(f);
-                String rootName = FilenameUtils.getBaseName(f);
-                System.out.println("-- ANALYZING IMAGE " + rootName + " --");
-                
-                ImporterOptions options = new ImporterOptions();
-                options.setId(f);
-                options.setQuiet(true);
-                options.setColorMode(ImporterOptions.COLOR_MODE_GRAYSCALE);
-                options.setSplitChannels(true);
-                
-                // Open phase contrast channel
-                int indexCh = ArrayUtils.indexOf(channels, chs[0]);
-                ImagePlus imgPhase = BF.openImagePlus(options)[indexCh];
-                
-                // Open fluo channel
-                indexCh = ArrayUtils.indexOf(channels, chs[1]);
-                ImagePlus imgFluo = BF.openImagePlus(options)[indexCh];
-                
-                for(int t=1; t < imgPhase.getNFrames() + 1; t++) {
-                    
-                    // Open frame t for channel 0
-                    ImagePlus tPhase = new Duplicator().run​(imgPhase, 1, 1, 1, 1, t, t);
-                    // Detect bacteria with Omnipose
-                    System.out.println("- Detecting bacteria on phase contrast channel -");
-                    Objects3DIntPopulation tbactPop = tools.omniposeDetection(tPhase);
-                    System.out.println(tbactPop.getNbObjects() + " bacteria found on frame " + t);
-                    
-                    // Open frame t for channel 1
-                    ImagePlus tFluo = new Duplicator().run​(imgFluo, 1, 1, 1, 1, t, t);
-                    double tBackground = tools.findRoiBackgroundAuto(tFluo, 100, "median"); // rolling ball radius of 100 pixels
-                        
-                    // Do measurements and save results
-                    System.out.println("- Saving results -");
-                    tools.saveResults(tbactPop, tPhase, tFluo, tBackground, rootName, fluoResults, shapeResults, t);
-                
-                    // Save images
-                    tools.drawResults(tPhase, tFluo, tbactPop, outDirResults+rootName, outDirResults, t);
-
-                }
- 
-                tools.flush_close(imgPhase);
-                tools.flush_close(imgFluo); 
-            }
+            // Decode, segment, measure and write in a pipeline
+            int[] indexChs = {ArrayUtils.indexOf(channels, chs[0]), ArrayUtils.indexOf(channels, chs[1])};
+            reader.close();
+            // Each image analyzed in parallel has its own decoding and segmentation thread
+            int measureThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+            new AnalysisPipeline(tools, outDirResults, results)
+                    .setThreads(tools.parallelImages, tools.parallelImages, measureThreads, 1)
+                    .setManifest(manifest)
+                    .setPrometheusMetrics(tools.prometheusMetrics)
+                    .run(imageFiles, indexChs);
 
             System.out.println("--Done !--");
             
-        }   catch (IOException | FormatException | DependencyException | ServiceException ex) {
+        }   catch (Exception ex) {
             Logger.getLogger(Fluo_Ratio_Bact_Bg.class.getName()).log(Level.SEVERE, null, ex);
-        }  
+        } finally {
+            tools.stopSegmentation();
+            try {
+                if (manifest != null)
+                    manifest.close();
+            } catch (IOException ex) {
+                Logger.getLogger(Fluo_Ratio_Bact_Bg.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
     }
 }    
@@ -0,0 +1,403 @@
+package Fluo_Ratio_Bact_Bg;
+import ij.ImagePlus;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import loci.plugins.util.ImageProcessorReader;
+import mcib3d.geom2.Objects3DIntPopulation;
+import org.apache.commons.io.FilenameUtils;
+
+// Batch analysis as 4 stages connected by bounded queues, each stage with its own number of threads:
+//   decode (Bio-Formats, one reader per thread) -> segment (Omnipose, one call per block of frames)
+//   -> measure (background + bacteria measurements) -> write (tracking, results rows and overlays in frame order)
+// Overlays are compressed and written by the background thread of an OverlaySink (or saved one TIFF per frame by the write stage)
+// so that decoding of the next frames and measurement of the previous ones overlap with segmentation
+// Time, allocations and counts of each stage are written to the Results folder at the end of the run (StageMetrics)
+// A failure to decode, segment or measure an image only stops that image: its remaining frames are skipped (frames already
+// written stay recorded in the manifest, so a new run resumes it) and the other images go on. Write failures stop the run
+public class AnalysisPipeline {
+
+    private final Tools tools;
+    private final String outDirResults;
+    private final ResultsSink results;
+    private int decodeThreads = 1;
+    private int segmentThreads = 1;
+    private int measureThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private int writeThreads = 1;
+    private int queueCapacity = 4;
+    private RunManifest manifest = null;
+    private final StageMetrics metrics = new StageMetrics();
+    private boolean prometheusMetrics = false;
+    private OverlaySink overlays = null;
+
+    // End of stream markers
+    private static final FrameBatch END_BATCH = new FrameBatch(null, null, 0, null, null);
+    private static final FrameData END_FRAME = new FrameData(null, 0, null, null, null, 1);
+    private static final String END_FILE = "";
+
+    // Frames not yet written, the next frame to write for each image
+    private final Map<String, PriorityQueue<FrameData>> pendingFrames = new HashMap<>();
+    private final Map<String, Integer> nextFrame = new HashMap<>();
+    // First and last frames analyzed of each image
+    private final Map<String, int[]> frameRanges = new HashMap<>();
+    // Tracks of the images being written, continued from the manifest checkpoint for a resumed image
+    private final Map<String, CellTracker> trackers = new HashMap<>();
+    // Images whose analysis failed
+    private final Set<String> failedImages = ConcurrentHashMap.newKeySet();
+
+
+    // Frames given to the results sink but not yet recorded in the manifest (rows may still be buffered)
+    private final ArrayList<FrameData> unrecordedFrames = new ArrayList<>();
+
+
+    public AnalysisPipeline(Tools tools, String outDirResults, ResultsSink results) {
+        this.tools = tools;
+        this.outDirResults = outDirResults;
+        this.results = results;
+    }
+
+
+    public AnalysisPipeline setThreads(int decode, int segment, int measure, int write) {
+        decodeThreads = Math.max(1, decode);
+        segmentThreads = Math.max(1, segment);
+        measureThreads = Math.max(1, measure);
+        writeThreads = Math.max(1, write);
+        return this;
+    }
+
+
+    // Max number of items waiting between two stages (bounds memory)
+    public AnalysisPipeline setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+        return this;
+    }
+
+
+    // Frames already recorded in the manifest are skipped, written frames are recorded in it
+    public AnalysisPipeline setManifest(RunManifest manifest) {
+        this.manifest = manifest;
+        return this;
+    }
+
+
+    // Also write the stage metrics in Prometheus text format at the end of the run
+    public AnalysisPipeline setPrometheusMetrics(boolean prometheusMetrics) {
+        this.prometheusMetrics = prometheusMetrics;
+        return this;
+    }
+
+
+    public StageMetrics getMetrics() {
+        return metrics;
+    }
+
+
+    // Images not analyzed to the end because of a failure
+    public Set<String> getFailedImages() {
+        return failedImages;
+    }
+
+
+    // Analyze the given channels (phase, fluo) of all image files
+    public void run(List<String> imageFiles, int[] channels) throws Exception {
+        BlockingQueue<String> files = new LinkedBlockingQueue<>(imageFiles);
+        BlockingQueue<FrameBatch> batches = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<FrameData> segmented = new ArrayBlockingQueue<>(queueCapacity * tools.omniposeBatchSize);
+        BlockingQueue<FrameData> measured = new ArrayBlockingQueue<>(queueCapacity * tools.omniposeBatchSize);
+        for (int i = 0; i < decodeThreads; i++)
+            files.add(END_FILE);
+
+        int nThreads = decodeThreads + segmentThreads + measureThreads + writeThreads;
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        CompletionService<Object> stages = new ExecutorCompletionService<>(executor);
+        // Overlays still queued are written when the sink is closed, before the performance report
+        try (OverlaySink overlaySink = tools.overlayFormat.equals("frames") ? null :
+                new OverlaySink(outDirResults, tools.overlayFormat.equals("labels"), queueCapacity * tools.omniposeBatchSize, metrics)) {
+            overlays = overlaySink;
+            stage(stages, decodeThreads, files, END_FILE, f -> decode(f, channels, batches), FilenameUtils::getBaseName,
+                    () -> endOfStream(batches, END_BATCH, segmentThreads));
+            stage(stages, segmentThreads, batches, END_BATCH, b -> segment(b, segmented), b -> b.rootName,
+                    () -> endOfStream(segmented, END_FRAME, measureThreads));
+            stage(stages, measureThreads, segmented, END_FRAME, f -> measure(f, measured), f -> f.rootName,
+                    () -> endOfStream(measured, END_FRAME, writeThreads));
+            stage(stages, writeThreads, measured, END_FRAME, this::write, null, () -> {});
+
+            // Wait for all stage threads, first failure of a stage thread stops the whole pipeline
+            for (int i = 0; i < nThreads; i++) {
+                try {
+                    stages.take().get();
+                } catch (ExecutionException ex) {
+                    executor.shutdownNow();
+                    if (ex.getCause() instanceof Exception)
+                        throw (Exception) ex.getCause();
+                    throw ex;
+                }
+            }
+            // Rows still buffered in the results sink
+            results.flush();
+            recordFrames();
+            if (!failedImages.isEmpty())
+                System.out.println("-- " + failedImages.size() + " IMAGE(S) FAILED: " + String.join(", ", failedImages) + " --");
+        } finally {
+            executor.shutdownNow();
+            // Performance report, also of failed runs
+            metrics.writeReport(outDirResults, prometheusMetrics);
+        }
+    }
+
+
+    private interface StageWork<T> {
+        void process(T item) throws Exception;
+    }
+
+
+    // Start nThreads consumers of queue in, the last one to finish calls end
+    // A failure on an item fails the image given by imageOf (null: the failure stops the stage thread)
+    private <T> void stage(CompletionService<Object> stages, int nThreads, BlockingQueue<T> in, T endMarker, StageWork<T> work,
+            Function<T, String> imageOf, Runnable end) {
+        AtomicInteger running = new AtomicInteger(nThreads);
+        for (int i = 0; i < nThreads; i++) {
+            stages.submit(() -> {
+                for (T item = in.take(); item != endMarker; item = in.take()) {
+                    try {
+                        work.process(item);
+                    } catch (InterruptedException ex) {
+                        throw ex;
+                    } catch (Exception ex) {
+                        if (imageOf == null)
+                            throw ex;
+                        imageFailed(imageOf.apply(item), ex);
+                    }
+                }
+                if (running.decrementAndGet() == 0)
+                    end.run();
+                return null;
+            });
+        }
+    }
+
+
+    private void imageFailed(String rootName, Exception ex) {
+        // Omnipose failures carry the last Omnipose messages
+        if (failedImages.add(rootName))
+            System.out.println("-- IMAGE " + rootName + " FAILED, ITS REMAINING FRAMES ARE SKIPPED: " + ex + " --");
+    }
+
+
+    private <T> void endOfStream(BlockingQueue<T> queue, T endMarker, int nConsumers) {
+        try {
+            for (int i = 0; i < nConsumers; i++)
+                queue.put(endMarker);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    // Decode stage: blocks of frames of the phase and fluo channels of one file
+    private void decode(String file, int[] channels, BlockingQueue<FrameBatch> batches) throws Exception {
+        String rootName = FilenameUtils.getBaseName(file);
+        ImageProcessorReader reader = new ImageProcessorReader();
+        try {
+            StageMetrics.Probe probe = metrics.begin();
+            reader.setId(file);
+            // Decoding runs ahead of the other stages through the queue, no need for the reader read-ahead
+            FrameReader frames = new FrameReader(reader, channels, rootName, tools.cal, false);
+            int nFrames = frames.getNFrames();
+            metrics.end(probe, "open", rootName, 0, 0, 0);
+            int firstFrame = (manifest == null) ? 1 : manifest.nextFrame(rootName);
+            if (firstFrame > nFrames) {
+                System.out.println("-- IMAGE " + rootName + " ALREADY ANALYZED --");
+                return;
+            }
+            System.out.println("-- ANALYZING IMAGE " + rootName + ((firstFrame > 1) ? " FROM FRAME " + firstFrame : "") + " --");
+            synchronized (pendingFrames) {
+                pendingFrames.put(rootName, new PriorityQueue<>((a, b) -> Integer.compare(a.t, b.t)));
+                nextFrame.put(rootName, firstFrame);
+                frameRanges.put(rootName, new int[] {firstFrame, nFrames});
+                double maxDistance = tools.trackMaxDistance / tools.cal.pixelWidth;
+                String trackState = (firstFrame > 1) ? manifest.trackState(rootName) : null;
+                trackers.put(rootName, (trackState == null) ? new CellTracker(maxDistance, 1) : CellTracker.restore(maxDistance, trackState));
+            }
+            for (int t0 = firstFrame; t0 <= nFrames; t0 += tools.omniposeBatchSize) {
+                probe = metrics.begin();
+                int t1 = Math.min(nFrames, t0 + tools.omniposeBatchSize - 1);
+                ImagePlus[] imgChs = frames.readFrames(t0, t1);
+                metrics.end(probe, "decode", rootName, t0, t1 - t0 + 1, 0);
+                batches.put(new FrameBatch(frames, rootName, t0, imgChs[0], imgChs[1]));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+
+    // Segment stage: one segmentation call per block of frames
+    private void segment(FrameBatch batch, BlockingQueue<FrameData> segmented) throws Exception {
+        if (failedImages.contains(batch.rootName))
+            return;
+        System.out.println("- Detecting bacteria on phase contrast channel of " + batch.rootName + " -");
+        StageMetrics.Probe probe = metrics.begin();
+        ArrayList<Objects3DIntPopulation> bactPops = tools.detectBacteriaFrames(batch.phase, batch.rootName, batch.t0);
+        int nBacteria = 0;
+        for (Objects3DIntPopulation pop : bactPops)
+            nBacteria += pop.getNbObjects();
+        metrics.end(probe, "segment", batch.rootName, batch.t0, bactPops.size(), nBacteria);
+        for (int i = 1; i <= batch.phase.getNFrames(); i++) {
+            int t = batch.t0 + i - 1;
+            Objects3DIntPopulation tbactPop = bactPops.get(i-1);
+            System.out.println(tbactPop.getNbObjects() + " bacteria found on frame " + t + " of " + batch.rootName);
+            segmented.put(new FrameData(batch.rootName, t, batch.frames.getFrame(batch.phase, i), batch.frames.getFrame(batch.fluo, i), tbactPop,
+                    tools.segmentationScale(batch.phase.getWidth())));
+        }
+    }
+
+
+    // Measure stage: background and measurements of all bacteria of a frame
+    private void measure(FrameData frame, BlockingQueue<FrameData> measured) throws Exception {
+        if (failedImages.contains(frame.rootName))
+            return;
+        StageMetrics.Probe probe = metrics.begin();
+        frame.background = tools.findRoiBackgroundAuto(frame.fluo, 100, tools.backgroundStride, "median"); // rolling ball radius of 100 pixels
+        metrics.end(probe, "background", frame.rootName, frame.t, 1, 0);
+        probe = metrics.begin();
+        frame.results = tools.measureResults(frame.pop, frame.scale, frame.phase, frame.fluo, frame.background, frame.rootName, frame.t);
+        metrics.end(probe, "measure", frame.rootName, frame.t, 1, frame.results.size());
+        measured.put(frame);
+    }
+
+
+    // Write stage: results rows and overlays of all frames ready to be written in frame order
+    private void write(FrameData frame) throws IOException {
+        if (failedImages.contains(frame.rootName)) {
+            skip(frame);
+            return;
+        }
+        StageMetrics.Probe probe;
+        if (overlays == null) {
+            probe = metrics.begin();
+            tools.drawResults(frame.phase, frame.fluo, frame.pop, frame.scale, outDirResults+frame.rootName, outDirResults, frame.t);
+            metrics.end(probe, "overlay", frame.rootName, frame.t, 1, frame.pop.getNbObjects());
+        }
+        synchronized (pendingFrames) {
+            PriorityQueue<FrameData> pending = pendingFrames.get(frame.rootName);
+            pending.add(frame);
+            int next = nextFrame.get(frame.rootName);
+            int[] range = frameRanges.get(frame.rootName);
+            CellTracker tracker = trackers.get(frame.rootName);
+            while (!pending.isEmpty() && pending.peek().t == next) {
+                FrameData ready = pending.poll();
+                unrecordedFrames.add(ready);
+                // The phase processor keeps its pixels once the frame is closed
+                if (overlays != null)
+                    overlays.write(ready.rootName, ready.t, range[0], range[1], ready.phase.getProcessor(), ready.pop, ready.scale, tools.cal);
+                probe = metrics.begin();
+                tracker.track(ready.results);
+                metrics.end(probe, "track", ready.rootName, ready.t, 1, ready.results.size());
+                probe = metrics.begin();
+                boolean flushed = results.write(ready.results);
+                metrics.end(probe, "results", ready.rootName, ready.t, 1, ready.results.size());
+                if (flushed)
+                    recordFrames();
+                ready.results = null;
+                tools.flush_close(ready.phase);
+                tools.flush_close(ready.fluo);
+                next++;
+            }
+            nextFrame.put(frame.rootName, next);
+            if (next > range[1])
+                trackers.remove(frame.rootName);
+        }
+    }
+
+
+    // Drop a frame of a failed image, with the frames of that image waiting to be written
+    // (its tracker keeps the state after the last frame written, for the manifest)
+    private void skip(FrameData frame) {
+        tools.flush_close(frame.phase);
+        tools.flush_close(frame.fluo);
+        synchronized (pendingFrames) {
+            PriorityQueue<FrameData> pending = pendingFrames.get(frame.rootName);
+            while (pending != null && !pending.isEmpty()) {
+                FrameData dropped = pending.poll();
+                tools.flush_close(dropped.phase);
+                tools.flush_close(dropped.fluo);
+            }
+        }
+    }
+
+
+    // Record in the manifest the frames whose rows have reached the results files
+    // Only the last of them of each image gets the tracker state (the state after it), as a resume only uses that one
+    private void recordFrames() throws IOException {
+        synchronized (pendingFrames) {
+            if (manifest != null) {
+                Map<String, FrameData> lastFrames = new HashMap<>();
+                for (FrameData frame : unrecordedFrames)
+                    lastFrames.put(frame.rootName, frame);
+                for (FrameData frame : unrecordedFrames) {
+                    // No tracker once all frames of the image are written
+                    CellTracker tracker = (lastFrames.get(frame.rootName) == frame) ? trackers.get(frame.rootName) : null;
+                    manifest.frameDone(frame.rootName, frame.t, (tracker == null) ? null : tracker.state());
+                }
+            }
+            unrecordedFrames.clear();
+        }
+    }
+
+
+    // Block of frames of one image
+    private static class FrameBatch {
+        final FrameReader frames;
+        final String rootName;
+        final int t0;
+        final ImagePlus phase;
+        final ImagePlus fluo;
+
+        FrameBatch(FrameReader frames, String rootName, int t0, ImagePlus phase, ImagePlus fluo) {
+            this.frames = frames;
+            this.rootName = rootName;
+            this.t0 = t0;
+            this.phase = phase;
+            this.fluo = fluo;
+        }
+    }
+
+
+    // One frame going through segmentation, measurement and writing
+    private static class FrameData {
+        final String rootName;
+        final int t;
+        final ImagePlus phase;
+        final ImagePlus fluo;
+        final Objects3DIntPopulation pop;
+        // Bacteria of pop live on the frame grid upscaled by scale
+        final float scale;
+        double background;
+        FrameResults results;
+
+        FrameData(String rootName, int t, ImagePlus phase, ImagePlus fluo, Objects3DIntPopulation pop, float scale) {
+            this.rootName = rootName;
+            this.t = t;
+            this.phase = phase;
+            this.fluo = fluo;
+            this.pop = pop;
+            this.scale = scale;
+        }
+    }
+}
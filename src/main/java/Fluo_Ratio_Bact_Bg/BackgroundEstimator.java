@@ -0,0 +1,189 @@
+package Fluo_Ratio_Bact_Bg;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Background estimation on square tiles of an image, the background being the tile with the lowest median (or mean) intensity
+// Tiles are moved with a stride that can be smaller than the tile size, so that dark regions straddling tile borders are not missed
+// 8 and 16-bit images use a moving histogram along each row of tiles: one step only adds/removes stride columns of pixels
+// and exact median/mean are read off the histogram (same values as ImageProcessor.getStatistics() on each tile roi)
+// Rows of tiles are processed in parallel in a fork-join pool
+public class BackgroundEstimator {
+
+    private final int tileSize;
+    private final int stride;
+    private final boolean median;
+    private final ForkJoinPool pool;
+
+
+    public BackgroundEstimator(int tileSize, String method) {
+        this(tileSize, tileSize, method, ForkJoinPool.commonPool());
+    }
+
+
+    public BackgroundEstimator(int tileSize, int stride, String method, ForkJoinPool pool) {
+        if (stride < 1 || stride > tileSize)
+            throw new IllegalArgumentException("Background stride must be between 1 and the tile size (" + tileSize + ")");
+        this.tileSize = tileSize;
+        this.stride = stride;
+        this.median = method.equals("median");
+        this.pool = pool;
+    }
+
+
+    // Number of tile positions along an image dimension, tiles touching the image border are not used
+    public int nbTiles(int imgSize) {
+        int n = 0;
+        for (int pos = 0; pos < imgSize - tileSize; pos += stride)
+            n++;
+        return(n);
+    }
+
+
+    // Median (or mean) intensity of each tile position, indexed [x tile][y tile]
+    public double[][] tileBackgrounds(ImageProcessor ip) {
+        int nx = nbTiles(ip.getWidth());
+        int ny = nbTiles(ip.getHeight());
+        double[][] bg = new double[nx][ny];
+        if (nx == 0 || ny == 0)
+            return(bg);
+
+        if (ip instanceof ShortProcessor || ip instanceof ByteProcessor) {
+            pool.invoke(new TileRows(ip, bg, 0, ny));
+        } else {
+            // Other bit depths: statistics of each tile roi
+            for (int tx = 0; tx < nx; tx++)
+                for (int ty = 0; ty < ny; ty++) {
+                    ip.setRoi(tx*stride, ty*stride, tileSize, tileSize);
+                    bg[tx][ty] = median ? ip.getStatistics().median : ip.getStatistics().mean;
+                }
+            ip.resetRoi();
+        }
+        return(bg);
+    }
+
+
+    // Background map of all tile positions with the tile of lowest background, null if the image is smaller than a tile
+    public BackgroundMap computeMap(ImageProcessor ip) {
+        double[][] bg = tileBackgrounds(ip);
+        RoiBg roiBg = null;
+        for (int tx = 0; tx < bg.length; tx++)
+            for (int ty = 0; ty < bg[tx].length; ty++)
+                if (roiBg == null || bg[tx][ty] < roiBg.getBgInt())
+                    roiBg = new RoiBg(new Roi(tx*stride, ty*stride, tileSize, tileSize), bg[tx][ty]);
+        return((roiBg == null) ? null : new BackgroundMap(roiBg, bg, tileSize, stride));
+    }
+
+
+    // Tile with the lowest background, null if the image is smaller than a tile
+    public RoiBg findMinTile(ImageProcessor ip) {
+        BackgroundMap map = computeMap(ip);
+        return((map == null) ? null : map.getMinRoiBg());
+    }
+
+
+    // Splits rows of tiles between the threads of the pool
+    private class TileRows extends RecursiveAction {
+        private final ImageProcessor ip;
+        private final double[][] bg;
+        private final int from, to;
+
+        TileRows(ImageProcessor ip, double[][] bg, int from, int to) {
+            this.ip = ip;
+            this.bg = bg;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            int rowsPerTask = Math.max(1, bg[0].length / (4*pool.getParallelism()));
+            if (to - from > rowsPerTask) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new TileRows(ip, bg, from, mid), new TileRows(ip, bg, mid, to));
+                return;
+            }
+            MovingHistogram hist = new MovingHistogram(ip);
+            for (int ty = from; ty < to; ty++)
+                scanRow(hist, ty);
+        }
+
+        // Slide the tile along row ty, only the columns leaving and entering the tile are updated at each step
+        private void scanRow(MovingHistogram hist, int ty) {
+            int y0 = ty*stride;
+            int nx = bg.length;
+            hist.addColumns(0, tileSize, y0, tileSize);
+            for (int tx = 0; tx < nx; tx++) {
+                if (tx > 0) {
+                    int x0 = tx*stride;
+                    hist.removeColumns(x0 - stride, stride, y0, tileSize);
+                    hist.addColumns(x0 + tileSize - stride, stride, y0, tileSize);
+                }
+                bg[tx][ty] = median ? hist.median() : hist.mean();
+            }
+            hist.removeColumns((nx - 1)*stride, tileSize, y0, tileSize);
+        }
+    }
+
+
+    // Two-level histogram (256 coarse bins over the fine bins) so that the median is found in O(bins^1/2)
+    private static class MovingHistogram {
+        private final short[] shorts;
+        private final byte[] bytes;
+        private final int width;
+        private final int[] fine;
+        private final int[] coarse;
+        private long count = 0;
+        private long sum = 0;
+
+        MovingHistogram(ImageProcessor ip) {
+            Object pixels = ip.getPixels();
+            shorts = (pixels instanceof short[]) ? (short[]) pixels : null;
+            bytes = (pixels instanceof byte[]) ? (byte[]) pixels : null;
+            width = ip.getWidth();
+            fine = new int[(shorts != null) ? 65536 : 256];
+            coarse = new int[(fine.length + 255) >> 8];
+        }
+
+        void addColumns(int x0, int nCols, int y0, int nRows) {
+            update(x0, nCols, y0, nRows, 1);
+        }
+
+        void removeColumns(int x0, int nCols, int y0, int nRows) {
+            update(x0, nCols, y0, nRows, -1);
+        }
+
+        private void update(int x0, int nCols, int y0, int nRows, int inc) {
+            for (int y = y0; y < y0 + nRows; y++) {
+                int offset = y*width;
+                for (int x = x0; x < x0 + nCols; x++) {
+                    int v = (shorts != null) ? shorts[offset+x] & 0xffff : bytes[offset+x] & 0xff;
+                    fine[v] += inc;
+                    coarse[v >> 8] += inc;
+                    sum += inc*v;
+                }
+            }
+            count += (long) inc*nCols*nRows;
+        }
+
+        double mean() {
+            return((double) sum / count);
+        }
+
+        // Same definition as ImageJ integer statistics: first value for which the cumulative count exceeds half of the pixels
+        int median() {
+            double halfCount = count/2.0;
+            long cum = 0;
+            int c = 0;
+            while (cum + coarse[c] <= halfCount)
+                cum += coarse[c++];
+            int v = c << 8;
+            while (cum + fine[v] <= halfCount)
+                cum += fine[v++];
+            return(v);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package Fluo_Ratio_Bact_Bg;
+
+
+// Background intensity of every tile position of an image, with the tile of lowest background
+public class BackgroundMap {
+
+    private final RoiBg minRoiBg;
+    private final double[][] values;
+    private final int tileSize;
+    private final int stride;
+
+
+    public BackgroundMap(RoiBg minRoiBg, double[][] values, int tileSize, int stride) {
+        this.minRoiBg = minRoiBg;
+        this.values = values;
+        this.tileSize = tileSize;
+        this.stride = stride;
+    }
+
+    public RoiBg getMinRoiBg() {
+        return minRoiBg;
+    }
+
+    // Background of the tile starting at (tx*stride, ty*stride)
+    public double getValue(int tx, int ty) {
+        return values[tx][ty];
+    }
+
+    public double[][] getValues() {
+        return values;
+    }
+
+    public int getNbTilesX() {
+        return values.length;
+    }
+
+    public int getNbTilesY() {
+        return (values.length == 0) ? 0 : values[0].length;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+}
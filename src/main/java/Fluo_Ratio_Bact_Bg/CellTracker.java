@@ -0,0 +1,242 @@
+package Fluo_Ratio_Bact_Bg;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+
+// Links the bacteria of consecutive frames of one image into tracks, frames must be given in frame order
+// A bacterium continues the track of the bacterium of the previous frame it overlaps most (intersection over union),
+// without overlap the track of the closest one within maxDistance (pixels), each track being continued by a single bacterium
+// (after a division the daughter with the best link keeps the track, the other one starts a new track)
+// Overlaps are counted in a single scan of the two label planes and close bacteria are looked up in a grid of
+// maxDistance-wide cells, so linking is linear in the number of pixels and bacteria instead of all pairs
+// The state after a frame (state()) can be saved with a run checkpoint and restored (restore()) to continue the tracks
+// in a resumed run, the label plane is not part of it so the first frame after a restore is linked by distance only
+public class CellTracker {
+
+    // Previous bacteria counted per bacterium, more overlaps (segmentation noise) are ignored
+    private static final int MAX_OVERLAPS = 4;
+
+    private final double maxDistance;
+    private int nextTrack;
+    // Previous frame, arrays indexed by label (track 0 for missing labels)
+    private ImageProcessor prevLabels = null;
+    private int prevMaxLabel = 0;
+    private float[] prevX = new float[0], prevY = new float[0];
+    private int[] prevArea = new int[0], prevTracks = new int[0];
+    // Labels of the previous frame by grid cell: labels of cell c are gridLabels[gridStart[c]..gridStart[c+1]-1]
+    private int gridWidth = 0, gridHeight = 0;
+    private double gridCell = 1;
+    private int[] gridStart = new int[1], gridLabels = new int[0];
+
+
+    public CellTracker(double maxDistance, int firstTrack) {
+        this.maxDistance = maxDistance;
+        this.nextTrack = firstTrack;
+    }
+
+
+    // Tracker continuing the tracks of a saved state()
+    public static CellTracker restore(double maxDistance, String state) {
+        String[] fields = state.split(";");
+        CellTracker tracker = new CellTracker(maxDistance, Integer.parseInt(fields[0]));
+        int n = fields.length - 1;
+        int[] labels = new int[n];
+        double[] x = new double[n], y = new double[n];
+        int[] tracks = new int[n];
+        int maxLabel = 0;
+        for (int i = 0; i < n; i++) {
+            String[] values = fields[i + 1].split(",");
+            labels[i] = Integer.parseInt(values[0]);
+            x[i] = Float.parseFloat(values[1]);
+            y[i] = Float.parseFloat(values[2]);
+            tracks[i] = Integer.parseInt(values[3]);
+            maxLabel = Math.max(maxLabel, labels[i]);
+        }
+        tracker.keep(n, labels, x, y, tracks, null, maxLabel, new int[n]);
+        return(tracker);
+    }
+
+
+    // Next track ID and bacteria of the last frame tracked, as nextTrack;label,x,y,track;label,x,y,track...
+    public String state() {
+        StringBuilder state = new StringBuilder().append(nextTrack);
+        for (int label = 1; label <= prevMaxLabel; label++)
+            if (prevTracks[label] != 0)
+                state.append(';').append(label).append(',').append(prevX[label]).append(',').append(prevY[label])
+                        .append(',').append(prevTracks[label]);
+        return(state.toString());
+    }
+
+
+    // Set the track of all bacteria of the frame, the label plane of the frame is kept for the next one
+    public void track(FrameResults frame) {
+        int n = frame.size();
+        int maxLabel = 0;
+        for (int i = 0; i < n; i++)
+            maxLabel = Math.max(maxLabel, (int) frame.labels[i]);
+        int[] rows = new int[maxLabel + 1];
+        Arrays.fill(rows, -1);
+        for (int i = 0; i < n; i++)
+            rows[(int) frame.labels[i]] = i;
+
+        // Areas and overlaps with the previous bacteria in one scan
+        ImageProcessor labels = frame.labelPlane;
+        int[] area = new int[n];
+        int[] overlapLabels = new int[n*MAX_OVERLAPS];
+        int[] overlapCounts = new int[n*MAX_OVERLAPS];
+        if (labels != null) {
+            boolean overlaps = prevLabels != null && prevLabels.getWidth() == labels.getWidth() && prevLabels.getHeight() == labels.getHeight();
+            int nPixels = labels.getWidth()*labels.getHeight();
+            for (int i = 0; i < nPixels; i++) {
+                int label = (int) labels.getf(i);
+                if (label <= 0 || label > maxLabel || rows[label] < 0)
+                    continue;
+                int row = rows[label];
+                area[row]++;
+                if (!overlaps)
+                    continue;
+                int prev = (int) prevLabels.getf(i);
+                if (prev <= 0 || prev > prevMaxLabel || prevTracks[prev] == 0)
+                    continue;
+                for (int k = row*MAX_OVERLAPS; k < (row + 1)*MAX_OVERLAPS; k++) {
+                    if (overlapLabels[k] == prev || overlapLabels[k] == 0) {
+                        overlapLabels[k] = prev;
+                        overlapCounts[k]++;
+                        break;
+                    }
+                }
+            }
+        }
+
+        // Candidate links (bacterium, previous label) with their score: 1 + IoU with overlap, 1 - distance/maxDistance without
+        Links links = new Links(2*n);
+        for (int row = 0; row < n; row++) {
+            for (int k = row*MAX_OVERLAPS; k < (row + 1)*MAX_OVERLAPS && overlapLabels[k] != 0; k++) {
+                int prev = overlapLabels[k];
+                double iou = (double) overlapCounts[k] / (area[row] + prevArea[prev] - overlapCounts[k]);
+                links.add(1 + iou, row, prev);
+            }
+            if (maxDistance <= 0 || prevMaxLabel == 0)
+                continue;
+            double x = frame.centroidX[row], y = frame.centroidY[row];
+            int cx = (int) (x / gridCell), cy = (int) (y / gridCell);
+            for (int gy = Math.max(0, cy - 1); gy <= Math.min(gridHeight - 1, cy + 1); gy++)
+                for (int gx = Math.max(0, cx - 1); gx <= Math.min(gridWidth - 1, cx + 1); gx++) {
+                    int cell = gy*gridWidth + gx;
+                    for (int c = gridStart[cell]; c < gridStart[cell + 1]; c++) {
+                        int prev = gridLabels[c];
+                        double d = Math.hypot(prevX[prev] - x, prevY[prev] - y);
+                        if (d <= maxDistance && !overlapped(overlapLabels, row, prev))
+                            links.add(1 - d/maxDistance, row, prev);
+                    }
+                }
+        }
+
+        // Best links first, one bacterium per track
+        int[] tracks = frame.trackIds;
+        Arrays.fill(tracks, 0, n, 0);
+        boolean[] used = new boolean[prevMaxLabel + 1];
+        long[] order = links.order();
+        for (int o = order.length - 1; o >= 0; o--) {
+            int l = (int) order[o];
+            int row = links.rows[l], prev = links.prevs[l];
+            if (tracks[row] != 0 || used[prev])
+                continue;
+            tracks[row] = prevTracks[prev];
+            used[prev] = true;
+        }
+        for (int row = 0; row < n; row++)
+            if (tracks[row] == 0)
+                tracks[row] = nextTrack++;
+
+        int[] frameLabels = new int[n];
+        for (int i = 0; i < n; i++)
+            frameLabels[i] = (int) frame.labels[i];
+        keep(n, frameLabels, frame.centroidX, frame.centroidY, tracks, labels, maxLabel, area);
+        frame.labelPlane = null;
+    }
+
+
+    private static boolean overlapped(int[] overlapLabels, int row, int prev) {
+        for (int k = row*MAX_OVERLAPS; k < (row + 1)*MAX_OVERLAPS; k++)
+            if (overlapLabels[k] == prev)
+                return(true);
+        return(false);
+    }
+
+
+    // The n bacteria of a frame become the previous frame, their centroids are sorted in the grid
+    private void keep(int n, int[] frameLabels, double[] x, double[] y, int[] tracks, ImageProcessor labels, int maxLabel, int[] area) {
+        prevLabels = labels;
+        prevMaxLabel = maxLabel;
+        prevX = new float[maxLabel + 1];
+        prevY = new float[maxLabel + 1];
+        prevArea = new int[maxLabel + 1];
+        prevTracks = new int[maxLabel + 1];
+        double maxX = 0, maxY = 0;
+        for (int i = 0; i < n; i++) {
+            int label = frameLabels[i];
+            prevX[label] = (float) x[i];
+            prevY[label] = (float) y[i];
+            prevArea[label] = area[i];
+            prevTracks[label] = tracks[i];
+            maxX = Math.max(maxX, x[i]);
+            maxY = Math.max(maxY, y[i]);
+        }
+        if (maxDistance <= 0)
+            return;
+        // At most 1024 x 1024 cells, bigger cells only give more candidates to check
+        gridCell = Math.max(maxDistance, Math.max(maxX, maxY) / 1024);
+        gridWidth = (int) (maxX / gridCell) + 1;
+        gridHeight = (int) (maxY / gridCell) + 1;
+        gridStart = new int[gridWidth*gridHeight + 1];
+        gridLabels = new int[n];
+        for (int i = 0; i < n; i++)
+            gridStart[cell(x[i], y[i]) + 1]++;
+        for (int c = 0; c < gridWidth*gridHeight; c++)
+            gridStart[c + 1] += gridStart[c];
+        int[] fill = Arrays.copyOf(gridStart, gridWidth*gridHeight);
+        for (int i = 0; i < n; i++)
+            gridLabels[fill[cell(x[i], y[i])]++] = frameLabels[i];
+    }
+
+
+    private int cell(double x, double y) {
+        return((int) (y / gridCell)*gridWidth + (int) (x / gridCell));
+    }
+
+
+    // Candidate links in primitive arrays
+    private static class Links {
+        int size = 0;
+        double[] scores;
+        int[] rows, prevs;
+
+        Links(int capacity) {
+            scores = new double[Math.max(1, capacity)];
+            rows = new int[scores.length];
+            prevs = new int[scores.length];
+        }
+
+        void add(double score, int row, int prev) {
+            if (size == scores.length) {
+                scores = Arrays.copyOf(scores, 2*size);
+                rows = Arrays.copyOf(rows, 2*size);
+                prevs = Arrays.copyOf(prevs, 2*size);
+            }
+            scores[size] = score;
+            rows[size] = row;
+            prevs[size] = prev;
+            size++;
+        }
+
+        // Link indexes in the low 32 bits, sorted by increasing score (scores are in [0, 2], quantized to 2^-29 so that a
+        // score of 2 still fits in the 31 bits of the high half and keys stay positive)
+        long[] order() {
+            long[] order = new long[size];
+            for (int i = 0; i < size; i++)
+                order[i] = ((long) (scores[i]*(1 << 29)) << 32) | i;
+            Arrays.sort(order);
+            return(order);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package Fluo_Ratio_Bact_Bg;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+// Pure Java segmentation (threshold, distance transform and seeded watershed), a fast path for high-contrast phase images
+// Frames are segmented one after the other, each one with all the threads of the segmenter pool
+public class ClassicalBackend implements SegmentationBackend {
+
+    private final ClassicalSegmenter segmenter;
+
+
+    public ClassicalBackend(ClassicalSegmenter segmenter) {
+        this.segmenter = segmenter;
+    }
+
+
+    @Override
+    public ImageProcessor[] segment(ImageStack frames, String imageName, int[] frameNumbers) {
+        ImageProcessor[] masks = new ImageProcessor[frames.getSize()];
+        for (int i = 0; i < masks.length; i++)
+            masks[i] = segmenter.segment(frames.getProcessor(i+1));
+        return(masks);
+    }
+
+
+    // Segmenting again is about as fast as reading the cache
+    @Override
+    public String settings() {
+        return(null);
+    }
+}
@@ -0,0 +1,396 @@
+package Fluo_Ratio_Bact_Bg;
+import ij.plugin.filter.GaussianBlur;
+import ij.process.AutoThresholder;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Classical segmentation of phase contrast frames, for high-contrast images where Omnipose is not needed
+//   - gaussian smoothing and Otsu threshold, bacteria being darker than the background
+//   - exact euclidean distance transform of the bacteria mask (Felzenszwalb & Huttenlocher: columns, then rows)
+//   - seeds on the ridges of the distance map: pixels within seedDepth of the highest distance around them,
+//     so that touching bacteria are split where the mask narrows by more than seedDepth
+//   - seeded watershed flooding the distance map from the seeds, highest distances first
+// Histogram, distance transform and seeds are computed on strips of the image in parallel, the watershed floods the
+// connected regions of the mask in parallel (regions are independent). Output is a 16-bit label image, as Omnipose masks
+public class ClassicalSegmenter {
+
+    private static final float INF = 1e20f;
+    // Half size of the neighbourhood in which seeds must be close to the highest distance
+    private static final int SEED_RADIUS = 2;
+
+    private final double sigma;
+    private final double seedDepth;
+    private final ForkJoinPool pool;
+
+
+    public ClassicalSegmenter(double sigma, double seedDepth, ForkJoinPool pool) {
+        this.sigma = sigma;
+        this.seedDepth = seedDepth;
+        this.pool = pool;
+    }
+
+
+    public ShortProcessor segment(ImageProcessor ip) {
+        int width = ip.getWidth(), height = ip.getHeight();
+        FloatProcessor fp = ip.convertToFloatProcessor();
+        if (sigma > 0)
+            new GaussianBlur().blurGaussian(fp, sigma, sigma, 0.01);
+        byte[] mask = threshold((float[]) fp.getPixels(), width, height);
+        float[] dist = distanceMap(mask, width, height);
+        int[] labels = watershed(mask, dist, seeds(mask, dist, width, height), width, height);
+        short[] pixels = new short[labels.length];
+        for (int p = 0; p < labels.length; p++)
+            pixels[p] = (short) labels[p];
+        return(new ShortProcessor(width, height, pixels, null));
+    }
+
+
+    // Bacteria mask (1 for bacteria): pixels up to the Otsu threshold of a 256 bins histogram
+    byte[] threshold(float[] pixels, int width, int height) {
+        float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+        for (float v : pixels) {
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        byte[] mask = new byte[pixels.length];
+        if (max <= min)
+            return(mask);
+        final float offset = min, scale = 256/(max - min);
+        int[] histogram = new int[256];
+        strips(height, (from, to) -> {
+            int[] stripHistogram = new int[256];
+            for (int p = from*width; p < to*width; p++)
+                stripHistogram[bin(pixels[p], offset, scale)]++;
+            synchronized (histogram) {
+                for (int b = 0; b < 256; b++)
+                    histogram[b] += stripHistogram[b];
+            }
+        });
+        int level = new AutoThresholder().getThreshold(AutoThresholder.Method.Otsu, histogram);
+        strips(height, (from, to) -> {
+            for (int p = from*width; p < to*width; p++)
+                mask[p] = (byte) ((bin(pixels[p], offset, scale) <= level) ? 1 : 0);
+        });
+        return(mask);
+    }
+
+
+    private static int bin(float v, float offset, float scale) {
+        return(Math.min(255, (int) ((v - offset)*scale)));
+    }
+
+
+    // Euclidean distance of each bacteria pixel to the nearest background pixel (0 on the background)
+    float[] distanceMap(byte[] mask, int width, int height) {
+        float[] dist = new float[mask.length];
+        // Squared distance to the nearest background pixel of the same column
+        strips(width, (from, to) -> {
+            float[] f = new float[height], d = new float[height], z = new float[height+1];
+            int[] v = new int[height];
+            for (int x = from; x < to; x++) {
+                for (int y = 0; y < height; y++)
+                    f[y] = (mask[y*width+x] == 0) ? 0 : INF;
+                distance1D(f, height, d, v, z);
+                for (int y = 0; y < height; y++)
+                    dist[y*width+x] = d[y];
+            }
+        });
+        // Then along rows, on the column distances
+        strips(height, (from, to) -> {
+            float[] f = new float[width], d = new float[width], z = new float[width+1];
+            int[] v = new int[width];
+            for (int y = from; y < to; y++) {
+                System.arraycopy(dist, y*width, f, 0, width);
+                distance1D(f, width, d, v, z);
+                for (int x = 0; x < width; x++)
+                    dist[y*width+x] = (float) Math.sqrt(d[x]);
+            }
+        });
+        return(dist);
+    }
+
+
+    // Squared distance transform of a sampled function: lower envelope of the parabolas rooted at each sample
+    private static void distance1D(float[] f, int n, float[] d, int[] v, float[] z) {
+        int k = 0;
+        v[0] = 0;
+        z[0] = -INF;
+        z[1] = INF;
+        for (int q = 1; q < n; q++) {
+            float s = ((f[q] + q*q) - (f[v[k]] + v[k]*v[k])) / (2*q - 2*v[k]);
+            while (k > 0 && s <= z[k]) {
+                k--;
+                s = ((f[q] + q*q) - (f[v[k]] + v[k]*v[k])) / (2*q - 2*v[k]);
+            }
+            k++;
+            v[k] = q;
+            z[k] = s;
+            z[k+1] = INF;
+        }
+        k = 0;
+        for (int q = 0; q < n; q++) {
+            while (z[k+1] < q)
+                k++;
+            d[q] = (q - v[k])*(q - v[k]) + f[v[k]];
+        }
+    }
+
+
+    // Seed pixels (1): bacteria pixels whose distance is within seedDepth of the highest distance around them
+    byte[] seeds(byte[] mask, float[] dist, int width, int height) {
+        byte[] seeds = new byte[mask.length];
+        strips(height, (from, to) -> {
+            for (int y = from; y < to; y++)
+                for (int x = 0; x < width; x++) {
+                    int p = y*width + x;
+                    if (mask[p] == 0)
+                        continue;
+                    float max = 0;
+                    for (int yy = Math.max(0, y - SEED_RADIUS); yy <= Math.min(height - 1, y + SEED_RADIUS); yy++)
+                        for (int xx = Math.max(0, x - SEED_RADIUS); xx <= Math.min(width - 1, x + SEED_RADIUS); xx++)
+                            max = Math.max(max, dist[yy*width+xx]);
+                    if (dist[p] >= max - seedDepth)
+                        seeds[p] = 1;
+                }
+        });
+        return(seeds);
+    }
+
+
+    // Labels of the bacteria: connected seeds are labelled, then grown over the mask by decreasing distance
+    int[] watershed(byte[] mask, float[] dist, byte[] seeds, int width, int height) {
+        int n = mask.length;
+        int[] queue = new int[n];
+        int[] regions = new int[n];
+        int nRegions = labelComponents(mask, regions, width, height, queue);
+        int[] labels = new int[n];
+        int nLabels = removeFalseSeeds(labelComponents(seeds, labels, width, height, queue), labels, mask, dist, width, height);
+
+        // Regions without seed (their highest distances are next to a higher region) are seeded at their maximum
+        boolean[] seeded = new boolean[nRegions+1];
+        float[] best = new float[nRegions+1];
+        int[] bestPixel = new int[nRegions+1];
+        int[] start = new int[nRegions+2];
+        for (int p = 0; p < n; p++) {
+            int r = regions[p];
+            if (r == 0)
+                continue;
+            if (labels[p] > 0)
+                seeded[r] = true;
+            if (dist[p] > best[r]) {
+                best[r] = dist[p];
+                bestPixel[r] = p;
+            }
+        }
+        for (int r = 1; r <= nRegions; r++)
+            if (!seeded[r])
+                labels[bestPixel[r]] = ++nLabels;
+        if (nLabels > 65535)
+            throw new IllegalStateException("Too many objects for a 16-bit label image (" + nLabels + ")");
+
+        // Seed pixels grouped by region
+        for (int p = 0; p < n; p++)
+            if (labels[p] > 0)
+                start[regions[p]+1]++;
+        for (int r = 1; r <= nRegions + 1; r++)
+            start[r] += start[r-1];
+        int[] seedPixels = new int[start[nRegions+1]];
+        int[] next = start.clone();
+        for (int p = 0; p < n; p++)
+            if (labels[p] > 0)
+                seedPixels[next[regions[p]]++] = p;
+        pool.invoke(new Flood(mask, dist, labels, seedPixels, start, width, height, 1, nRegions + 1,
+                Math.max(1, nRegions / (4*pool.getParallelism()))));
+        return(labels);
+    }
+
+
+    // Seeds next to a higher distance than their own highest distance are not maxima of the distance map
+    // (mask borders in the concavities between touching bacteria), they are removed and other seeds are relabelled
+    private static int removeFalseSeeds(int nSeeds, int[] labels, byte[] mask, float[] dist, int width, int height) {
+        float[] max = new float[nSeeds+1];
+        for (int p = 0; p < labels.length; p++)
+            max[labels[p]] = Math.max(max[labels[p]], dist[p]);
+        boolean[] falseSeed = new boolean[nSeeds+1];
+        for (int p = 0; p < labels.length; p++) {
+            int label = labels[p];
+            if (label == 0 || falseSeed[label])
+                continue;
+            int x = p % width, y = p / width;
+            for (int yy = Math.max(0, y - 1); yy <= Math.min(height - 1, y + 1); yy++)
+                for (int xx = Math.max(0, x - 1); xx <= Math.min(width - 1, x + 1); xx++) {
+                    int q = yy*width + xx;
+                    if (labels[q] == 0 && mask[q] != 0 && dist[q] > max[label])
+                        falseSeed[label] = true;
+                }
+        }
+        int[] newLabels = new int[nSeeds+1];
+        int nLabels = 0;
+        for (int label = 1; label <= nSeeds; label++)
+            if (!falseSeed[label])
+                newLabels[label] = ++nLabels;
+        for (int p = 0; p < labels.length; p++)
+            labels[p] = newLabels[labels[p]];
+        return(nLabels);
+    }
+
+
+    // 8-connected components of the non-zero pixels, labelled from 1 in scan order, returns the number of components
+    private static int labelComponents(byte[] mask, int[] labels, int width, int height, int[] queue) {
+        int nLabels = 0;
+        for (int p0 = 0; p0 < mask.length; p0++) {
+            if (mask[p0] == 0 || labels[p0] != 0)
+                continue;
+            labels[p0] = ++nLabels;
+            int head = 0, tail = 0;
+            queue[tail++] = p0;
+            while (head < tail) {
+                int p = queue[head++];
+                int x = p % width, y = p / width;
+                for (int yy = Math.max(0, y - 1); yy <= Math.min(height - 1, y + 1); yy++)
+                    for (int xx = Math.max(0, x - 1); xx <= Math.min(width - 1, x + 1); xx++) {
+                        int q = yy*width + xx;
+                        if (mask[q] != 0 && labels[q] == 0) {
+                            labels[q] = nLabels;
+                            queue[tail++] = q;
+                        }
+                    }
+            }
+        }
+        return(nLabels);
+    }
+
+
+    // Process [from, to) of a range split between the threads of the pool
+    private interface Strip {
+        void run(int from, int to);
+    }
+
+
+    private void strips(int size, Strip strip) {
+        pool.invoke(new Strips(strip, 0, size, Math.max(1, size / (4*pool.getParallelism()))));
+    }
+
+
+    private static class Strips extends RecursiveAction {
+        private final Strip strip;
+        private final int from, to, grain;
+
+        Strips(Strip strip, int from, int to, int grain) {
+            this.strip = strip;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > grain) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Strips(strip, from, mid, grain), new Strips(strip, mid, to, grain));
+                return;
+            }
+            strip.run(from, to);
+        }
+    }
+
+
+    // Watershed of the regions from..to-1, each region is flooded from its own seeds only
+    private static class Flood extends RecursiveAction {
+        private final byte[] mask;
+        private final float[] dist;
+        private final int[] labels, seedPixels, start;
+        private final int width, height, from, to, grain;
+
+        Flood(byte[] mask, float[] dist, int[] labels, int[] seedPixels, int[] start, int width, int height, int from, int to, int grain) {
+            this.mask = mask;
+            this.dist = dist;
+            this.labels = labels;
+            this.seedPixels = seedPixels;
+            this.start = start;
+            this.width = width;
+            this.height = height;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > grain) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Flood(mask, dist, labels, seedPixels, start, width, height, from, mid, grain),
+                        new Flood(mask, dist, labels, seedPixels, start, width, height, mid, to, grain));
+                return;
+            }
+            LongHeap heap = new LongHeap();
+            for (int i = start[from]; i < start[to]; i++)
+                heap.push(key(seedPixels[i]));
+            while (!heap.isEmpty()) {
+                int p = (int) heap.pop();
+                int x = p % width, y = p / width;
+                for (int yy = Math.max(0, y - 1); yy <= Math.min(height - 1, y + 1); yy++)
+                    for (int xx = Math.max(0, x - 1); xx <= Math.min(width - 1, x + 1); xx++) {
+                        int q = yy*width + xx;
+                        if (mask[q] != 0 && labels[q] == 0) {
+                            labels[q] = labels[p];
+                            heap.push(key(q));
+                        }
+                    }
+            }
+        }
+
+        // Highest distances first (bits of positive floats are ordered as the floats), pixel index in the low bits
+        private long key(int p) {
+            return(((long) (Integer.MAX_VALUE - Float.floatToIntBits(dist[p])) << 32) | p);
+        }
+    }
+
+
+    // Binary min-heap of longs (no boxing of millions of pixels)
+    private static class LongHeap {
+        private long[] keys = new long[1024];
+        private int size = 0;
+
+        boolean isEmpty() {
+            return(size == 0);
+        }
+
+        void push(long key) {
+            if (size == keys.length)
+                keys = Arrays.copyOf(keys, 2*size);
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (keys[parent] <= key)
+                    break;
+                keys[i] = keys[parent];
+                i = parent;
+            }
+            keys[i] = key;
+        }
+
+        long pop() {
+            long top = keys[0];
+            long last = keys[--size];
+            int i = 0;
+            while (true) {
+                int c = 2*i + 1;
+                if (c >= size)
+                    break;
+                if (c + 1 < size && keys[c+1] < keys[c])
+                    c++;
+                if (keys[c] >= last)
+                    break;
+                keys[i] = keys[c];
+                i = c;
+            }
+            keys[i] = last;
+            return(top);
+        }
+    }
+}
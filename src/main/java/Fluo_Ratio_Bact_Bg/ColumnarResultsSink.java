@@ -0,0 +1,181 @@
+package Fluo_Ratio_Bact_Bg;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+// Binary columnar results tables (fluo_results.bin and shape_results.bin), much smaller and faster to write and load
+// than the text tables. Parquet and Arrow are not available in Fiji, so the layout is a simple one of the same spirit,
+// made of independent row blocks so that a file can be appended to and truncated between blocks (run manifest):
+//   header : "FRBC" magic, int version, int number of columns, then for each column its type (byte) and name (UTF)
+//   block  : int number of rows, then each column in turn:
+//            STRING columns run-length encoded (int number of runs, then UTF value and int count for each run),
+//            INT as int[], FLOAT as float[], DOUBLE as double[]
+// All values are big-endian (DataOutputStream), columns are the same as in the text tables:
+// image name (STRING), frame (INT), label (FLOAT), track (INT), then DOUBLE values
+public class ColumnarResultsSink implements ResultsSink {
+
+    public static final String FLUO_FILE = "fluo_results.bin";
+    public static final String SHAPE_FILE = "shape_results.bin";
+    public static final byte STRING = 0, INT = 1, FLOAT = 2, DOUBLE = 3;
+    static final int MAGIC = 0x46524243; // FRBC
+    static final int VERSION = 2;
+
+    static final String[] FLUO_COLUMNS = {"Image name", "Frame number", "Bacterium ID", "Track ID", "Bacterium surface (µm2)", "Bacterium length (µm)",
+        "Bacterium intensity", "Background intensity", "Bacterium intensity / Background intensity"};
+    static final String[] SHAPE_COLUMNS = {"Image name", "Frame number", "Bact ID", "Track ID", "Bacterium area", "Bacterium feret", "Bacterium feret min",
+        "Bacterium cicularity", "Bacterium aspect ratio", "Bacterium roundness"};
+
+    private final Table fluoTable, shapeTable;
+    private int maxBufferRows = 1 << 16;
+    private long maxDelayMs = 5000;
+    private long lastFlush = System.currentTimeMillis();
+
+
+    public ColumnarResultsSink(OutputStream fluoFile, OutputStream shapeFile) {
+        fluoTable = new Table(fluoFile, FLUO_COLUMNS.length - 4);
+        shapeTable = new Table(shapeFile, SHAPE_COLUMNS.length - 4);
+    }
+
+
+    public ColumnarResultsSink setFlushPolicy(int maxBufferRows, long maxDelayMs) {
+        this.maxBufferRows = maxBufferRows;
+        this.maxDelayMs = maxDelayMs;
+        return this;
+    }
+
+
+    static LinkedHashMap<String, byte[]> files() {
+        LinkedHashMap<String, byte[]> files = new LinkedHashMap<>();
+        files.put(FLUO_FILE, header(FLUO_COLUMNS));
+        files.put(SHAPE_FILE, header(SHAPE_COLUMNS));
+        return(files);
+    }
+
+
+    // Image name, frame, label and track columns, then double columns
+    static byte[] header(String[] columns) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(columns.length);
+            for (int c = 0; c < columns.length; c++) {
+                out.writeByte((c == 0) ? STRING : (c == 1 || c == 3) ? INT : (c == 2) ? FLOAT : DOUBLE);
+                out.writeUTF(columns[c]);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return(bytes.toByteArray());
+    }
+
+
+    @Override
+    public boolean write(FrameResults frame) throws IOException {
+        int n = frame.size();
+        fluoTable.addRows(frame, n);
+        fluoTable.addColumn(0, frame.surface, n);
+        fluoTable.addColumn(1, frame.length, n);
+        fluoTable.addColumn(2, frame.intensity, n);
+        for (int i = 0; i < n; i++) {
+            fluoTable.values[3][fluoTable.nRows + i] = frame.background;
+            fluoTable.values[4][fluoTable.nRows + i] = frame.getRatio(i);
+        }
+        fluoTable.nRows += n;
+        shapeTable.addRows(frame, n);
+        shapeTable.addColumn(0, frame.area, n);
+        shapeTable.addColumn(1, frame.feret, n);
+        shapeTable.addColumn(2, frame.minFeret, n);
+        shapeTable.addColumn(3, frame.circularity, n);
+        shapeTable.addColumn(4, frame.aspectRatio, n);
+        shapeTable.addColumn(5, frame.roundness, n);
+        shapeTable.nRows += n;
+        if (fluoTable.nRows < maxBufferRows && System.currentTimeMillis() - lastFlush < maxDelayMs)
+            return(false);
+        flush();
+        return(true);
+    }
+
+
+    @Override
+    public void flush() throws IOException {
+        fluoTable.writeBlock();
+        shapeTable.writeBlock();
+        lastFlush = System.currentTimeMillis();
+    }
+
+
+    // Buffered rows of one table, arrays are reused from one block to the next
+    private static class Table {
+        final DataOutputStream out;
+        final ArrayList<String> names = new ArrayList<>();
+        int[] nameCounts = new int[16];
+        int[] frames = new int[1024];
+        float[] labels = new float[1024];
+        int[] tracks = new int[1024];
+        final double[][] values;
+        int nRows = 0;
+
+        Table(OutputStream file, int nValues) {
+            out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+            values = new double[nValues][1024];
+        }
+
+        // Image name, frame, label and track of n new rows, with room for their values
+        void addRows(FrameResults frame, int n) {
+            int size = nRows + n;
+            if (frames.length < size) {
+                int capacity = Math.max(size, 2*frames.length);
+                frames = Arrays.copyOf(frames, capacity);
+                labels = Arrays.copyOf(labels, capacity);
+                tracks = Arrays.copyOf(tracks, capacity);
+                for (int c = 0; c < values.length; c++)
+                    values[c] = Arrays.copyOf(values[c], capacity);
+            }
+            int last = names.size() - 1;
+            if (last < 0 || !names.get(last).equals(frame.imageName)) {
+                names.add(frame.imageName);
+                if (nameCounts.length < names.size())
+                    nameCounts = Arrays.copyOf(nameCounts, 2*nameCounts.length);
+                nameCounts[++last] = 0;
+            }
+            nameCounts[last] += n;
+            Arrays.fill(frames, nRows, size, frame.frame);
+            System.arraycopy(frame.labels, 0, labels, nRows, n);
+            System.arraycopy(frame.trackIds, 0, tracks, nRows, n);
+        }
+
+        void addColumn(int c, double[] column, int n) {
+            System.arraycopy(column, 0, values[c], nRows, n);
+        }
+
+        void writeBlock() throws IOException {
+            if (nRows > 0) {
+                out.writeInt(nRows);
+                out.writeInt(names.size());
+                for (int r = 0; r < names.size(); r++) {
+                    out.writeUTF(names.get(r));
+                    out.writeInt(nameCounts[r]);
+                }
+                for (int i = 0; i < nRows; i++)
+                    out.writeInt(frames[i]);
+                for (int i = 0; i < nRows; i++)
+                    out.writeFloat(labels[i]);
+                for (int i = 0; i < nRows; i++)
+                    out.writeInt(tracks[i]);
+                for (double[] column : values)
+                    for (int i = 0; i < nRows; i++)
+                        out.writeDouble(column[i]);
+            }
+            out.flush();
+            names.clear();
+            nRows = 0;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package Fluo_Ratio_Bact_Bg;
+
+// 2D Feret diameters of a set of points: convex hull (monotone chain) then rotating calipers
+// Max Feret is the largest distance between two hull points, min Feret the smallest caliper width
+// (one caliper lying on a hull edge), both with their end points
+// Arrays are reused from one call to the next
+public class FeretCalculator {
+
+    private double[] px = new double[0], py = new double[0];
+    private double[] hx = new double[0], hy = new double[0];
+    private double[] cx = new double[0], cy = new double[0];
+    private int nHull = 0;
+    private double maxFeret, minFeret;
+    private final double[] maxPoints = new double[4];
+    private final double[] minPoints = new double[4];
+
+
+    // Compute hull and Feret values of points (x[i], y[i]), i < n
+    public void compute(double[] x, double[] y, int n) {
+        buildHull(x, y, n);
+        calipers();
+    }
+
+
+    // After compute on pixel centers, compute the Feret values of the pixel squares (outline going through pixel corners)
+    // The hull of the squares is derived from the hull of the centers, so the pixels do not have to be scanned again
+    public void computePixelCorners() {
+        int h = nHull;
+        if (cx.length < 4*h) {
+            cx = new double[4*h];
+            cy = new double[4*h];
+        }
+        for (int i = 0; i < h; i++) {
+            for (int c = 0; c < 4; c++) {
+                cx[4*i + c] = hx[i] + ((c & 1) == 0 ? -0.5 : 0.5);
+                cy[4*i + c] = hy[i] + ((c & 2) == 0 ? -0.5 : 0.5);
+            }
+        }
+        compute(cx, cy, 4*h);
+    }
+
+
+    // Andrew's monotone chain, counter-clockwise hull without collinear points
+    private void buildHull(double[] x, double[] y, int n) {
+        if (px.length < n) {
+            px = new double[n];
+            py = new double[n];
+            hx = new double[2*n];
+            hy = new double[2*n];
+        }
+        // Sort points by x then y (insertion sort, object outlines only have a few hundred points)
+        for (int i = 0; i < n; i++) {
+            double xi = x[i], yi = y[i];
+            int k = i - 1;
+            while (k >= 0 && (px[k] > xi || (px[k] == xi && py[k] > yi))) {
+                px[k+1] = px[k];
+                py[k+1] = py[k];
+                k--;
+            }
+            px[k+1] = xi;
+            py[k+1] = yi;
+        }
+
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            while (k >= 2 && cross(hx[k-2], hy[k-2], hx[k-1], hy[k-1], px[i], py[i]) <= 0)
+                k--;
+            hx[k] = px[i];
+            hy[k++] = py[i];
+        }
+        for (int i = n - 2, lower = k + 1; i >= 0; i--) {
+            while (k >= lower && cross(hx[k-2], hy[k-2], hx[k-1], hy[k-1], px[i], py[i]) <= 0)
+                k--;
+            hx[k] = px[i];
+            hy[k++] = py[i];
+        }
+        // Last point is the first one
+        nHull = (n > 1) ? k - 1 : n;
+    }
+
+
+    private void calipers() {
+        int h = nHull;
+        maxFeret = 0;
+        minFeret = 0;
+        if (h == 0)
+            return;
+        setPoints(maxPoints, hx[0], hy[0], hx[0], hy[0]);
+        setPoints(minPoints, hx[0], hy[0], hx[0], hy[0]);
+        if (h == 1)
+            return;
+        if (h == 2) {
+            maxFeret = Math.hypot(hx[1] - hx[0], hy[1] - hy[0]);
+            setPoints(maxPoints, hx[0], hy[0], hx[1], hy[1]);
+            return;
+        }
+
+        minFeret = Double.MAX_VALUE;
+        int j = 1;
+        for (int i = 0; i < h; i++) {
+            int ni = (i + 1) % h;
+            // Move the opposite caliper to the farthest point from edge (i, ni)
+            while (area(i, ni, (j + 1) % h) > area(i, ni, j))
+                j = (j + 1) % h;
+            // Antipodal pairs for the max Feret
+            updateMax(i, j);
+            updateMax(ni, j);
+            updateMax(i, (j + 1) % h);
+            updateMax(ni, (j + 1) % h);
+            // Caliper width perpendicular to edge (i, ni)
+            double ex = hx[ni] - hx[i], ey = hy[ni] - hy[i];
+            double edge = Math.hypot(ex, ey);
+            double width = area(i, ni, j) / edge;
+            if (width < minFeret) {
+                minFeret = width;
+                // End points: opposite hull point and its projection on the edge line
+                double t = ((hx[j] - hx[i])*ex + (hy[j] - hy[i])*ey) / (edge*edge);
+                setPoints(minPoints, hx[j], hy[j], hx[i] + t*ex, hy[i] + t*ey);
+            }
+        }
+    }
+
+
+    private void updateMax(int a, int b) {
+        double d = Math.hypot(hx[b] - hx[a], hy[b] - hy[a]);
+        if (d > maxFeret) {
+            maxFeret = d;
+            setPoints(maxPoints, hx[a], hy[a], hx[b], hy[b]);
+        }
+    }
+
+
+    // Twice the area of hull triangle (a, b, c)
+    private double area(int a, int b, int c) {
+        return Math.abs(cross(hx[a], hy[a], hx[b], hy[b], hx[c], hy[c]));
+    }
+
+
+    private static double cross(double ox, double oy, double ax, double ay, double bx, double by) {
+        return (ax - ox)*(by - oy) - (ay - oy)*(bx - ox);
+    }
+
+
+    private static void setPoints(double[] points, double x1, double y1, double x2, double y2) {
+        points[0] = x1;
+        points[1] = y1;
+        points[2] = x2;
+        points[3] = y2;
+    }
+
+
+    public int getNbHullPoints() {
+        return nHull;
+    }
+
+    public double getMaxFeret() {
+        return maxFeret;
+    }
+
+    public double getMinFeret() {
+        return minFeret;
+    }
+
+    // {x1, y1, x2, y2}
+    public double[] getMaxFeretPoints() {
+        return maxPoints.clone();
+    }
+
+    // {x1, y1, x2, y2}, the second point lies on the hull edge of the caliper
+    public double[] getMinFeretPoints() {
+        return minPoints.clone();
+    }
+}
@@ -0,0 +1,140 @@
+package Fluo_Ratio_Bact_Bg;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import loci.formats.FormatException;
+import loci.plugins.util.ImageProcessorReader;
+
+// Streams the frames of the selected channels of an image file on demand
+// Only the requested planes are decoded, so memory depends on the number of frames read at once, not on the movie length
+// With read-ahead, the next block of frames is decoded in the background while the current one is analyzed
+public class FrameReader implements AutoCloseable {
+
+    private final ImageProcessorReader reader;
+    private final int[] channels;
+    private final String rootName;
+    private final Calibration cal;
+    private final int z;
+    private ExecutorService readAheadExecutor = null;
+    private Future<ImagePlus[]> nextFrames = null;
+    private int nextFrom = -1;
+    private int nextTo = -1;
+
+
+    public FrameReader(ImageProcessorReader reader, int[] channels, String rootName, Calibration cal, boolean readAhead) {
+        this.reader = reader;
+        this.channels = channels;
+        this.rootName = rootName;
+        this.cal = cal;
+        this.z = 0;
+        // Reader is not thread safe, so all decoding goes through this single thread when read-ahead is on
+        if (readAhead)
+            readAheadExecutor = Executors.newSingleThreadExecutor();
+    }
+
+
+    public int getNFrames() {
+        return(reader.getSizeT());
+    }
+
+
+    // Read frames from..to (1-based, inclusive), returns one time-lapse per channel
+    public ImagePlus[] readFrames(int from, int to) throws FormatException, IOException {
+        ImagePlus[] imgs;
+        if (readAheadExecutor == null) {
+            imgs = decode(from, to);
+        } else {
+            Future<ImagePlus[]> frames = (nextFrames != null && nextFrom == from && nextTo == to) ? nextFrames : submit(from, to);
+            if (frames != nextFrames && nextFrames != null)
+                nextFrames.cancel(false);
+            imgs = get(frames);
+            // Prefetch next block of same size
+            nextFrom = to + 1;
+            nextTo = Math.min(getNFrames(), to + to - from + 1);
+            nextFrames = (nextFrom <= nextTo) ? submit(nextFrom, nextTo) : null;
+        }
+        return(imgs);
+    }
+
+
+    // Read frame t (1-based), returns one plane per channel
+    public ImagePlus[] readFrame(int t) throws FormatException, IOException {
+        return(readFrames(t, t));
+    }
+
+
+    // Get frame t (1-based) of a time-lapse returned by readFrames, without copying pixels
+    public ImagePlus getFrame(ImagePlus img, int t) {
+        ImagePlus imgT = new ImagePlus(img.getTitle() + "-t" + t, img.getStack().getProcessor(t));
+        imgT.setCalibration(cal);
+        return(imgT);
+    }
+
+
+    private ImagePlus[] decode(int from, int to) throws FormatException, IOException {
+        int rgb = reader.getRGBChannelCount();
+        ImageStack[] stacks = new ImageStack[channels.length];
+        for (int i = 0; i < channels.length; i++)
+            stacks[i] = new ImageStack(reader.getSizeX(), reader.getSizeY());
+
+        for (int t = from - 1; t < to; t++) {
+            for (int i = 0; i < channels.length; i++) {
+                int index = reader.getIndex(z, channels[i] / rgb, t);
+                ImageProcessor ip = reader.openProcessors(index)[channels[i] % rgb];
+                stacks[i].addSlice(ip);
+            }
+        }
+
+        ImagePlus[] imgs = new ImagePlus[channels.length];
+        for (int i = 0; i < channels.length; i++) {
+            imgs[i] = new ImagePlus(rootName + "-C" + channels[i], stacks[i]);
+            imgs[i].setDimensions(1, 1, to - from + 1);
+            imgs[i].setCalibration(cal);
+        }
+        return(imgs);
+    }
+
+
+    private Future<ImagePlus[]> submit(int from, int to) {
+        return(readAheadExecutor.submit(() -> decode(from, to)));
+    }
+
+
+    private ImagePlus[] get(Future<ImagePlus[]> frames) throws FormatException, IOException {
+        try {
+            return(frames.get());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof FormatException)
+                throw (FormatException) ex.getCause();
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new IOException(ex.getCause());
+        }
+    }
+
+
+    @Override
+    public void close() {
+        if (readAheadExecutor != null) {
+            if (nextFrames != null)
+                nextFrames.cancel(false);
+            readAheadExecutor.shutdown();
+            try {
+                // Let a running decode finish before the reader is reused for the next file
+                readAheadExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package Fluo_Ratio_Bact_Bg;
+import ij.process.ImageProcessor;
+
+// Measurements of all bacteria of one frame, one primitive array per results column
+// Filled by the measure stage and consumed by a ResultsSink, so rows are only formatted when written
+public class FrameResults {
+
+    public final String imageName;
+    public final int frame;
+    public final double background;
+    private int size = 0;
+    float[] labels;
+    // Track of each bacterium across frames (0 if not tracked), centroids in pixels
+    int[] trackIds;
+    double[] centroidX, centroidY;
+    // Label plane of the frame, kept for the CellTracker and released by it
+    ImageProcessor labelPlane = null;
+    double[] surface, length, intensity;
+    double[] area, feret, minFeret, circularity, aspectRatio, roundness;
+
+
+    public FrameResults(String imageName, int frame, double background, int capacity) {
+        this.imageName = imageName;
+        this.frame = frame;
+        this.background = background;
+        labels = new float[capacity];
+        trackIds = new int[capacity];
+        centroidX = new double[capacity];
+        centroidY = new double[capacity];
+        surface = new double[capacity];
+        length = new double[capacity];
+        intensity = new double[capacity];
+        area = new double[capacity];
+        feret = new double[capacity];
+        minFeret = new double[capacity];
+        circularity = new double[capacity];
+        aspectRatio = new double[capacity];
+        roundness = new double[capacity];
+    }
+
+
+    public void add(float label, double x, double y, double surface, double length, double intensity, double area, double feret,
+            double minFeret, double circularity, double aspectRatio, double roundness) {
+        int i = size++;
+        labels[i] = label;
+        centroidX[i] = x;
+        centroidY[i] = y;
+        this.surface[i] = surface;
+        this.length[i] = length;
+        this.intensity[i] = intensity;
+        this.area[i] = area;
+        this.feret[i] = feret;
+        this.minFeret[i] = minFeret;
+        this.circularity[i] = circularity;
+        this.aspectRatio[i] = aspectRatio;
+        this.roundness[i] = roundness;
+    }
+
+
+    public int size() {
+        return size;
+    }
+
+    public float getLabel(int i) {
+        return labels[i];
+    }
+
+    public int getTrackId(int i) {
+        return trackIds[i];
+    }
+
+    public double getCentroidX(int i) {
+        return centroidX[i];
+    }
+
+    public double getCentroidY(int i) {
+        return centroidY[i];
+    }
+
+    public double getSurface(int i) {
+        return surface[i];
+    }
+
+    public double getLength(int i) {
+        return length[i];
+    }
+
+    public double getIntensity(int i) {
+        return intensity[i];
+    }
+
+    public double getRatio(int i) {
+        return intensity[i]/background;
+    }
+
+    public double getArea(int i) {
+        return area[i];
+    }
+
+    public double getFeret(int i) {
+        return feret[i];
+    }
+
+    public double getMinFeret(int i) {
+        return minFeret[i];
+    }
+
+    public double getCircularity(int i) {
+        return circularity[i];
+    }
+
+    public double getAspectRatio(int i) {
+        return aspectRatio[i];
+    }
+
+    public double getRoundness(int i) {
+        return roundness[i];
+    }
+}
@@ -0,0 +1,216 @@
+package Fluo_Ratio_Bact_Bg;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import loci.common.services.ServiceFactory;
+import loci.formats.meta.IMetadata;
+import loci.formats.services.OMEXMLService;
+import loci.plugins.util.ImageProcessorReader;
+import org.scijava.util.ArrayUtils;
+
+// Headless entry point for batch clusters: same analysis as the Fiji plugin, settings come from a config file and arguments
+//   java -cp <Fiji jars> Fluo_Ratio_Bact_Bg.HeadlessRunner --dir <images folder> [--config <file.properties>] [--shard i/N] [--<setting> <value>]...
+//   java -cp <Fiji jars> Fluo_Ratio_Bact_Bg.HeadlessRunner --merge <Results folder>
+// Settings are those of Tools.setSettings plus phase and fluo (channel name or index), arguments override the config file
+// With --shard i/N (0 <= i < N) the run takes the images i, i+N, i+2N... of the sorted image list (same split on every node)
+// and writes its results in Results/shard_i_of_N; --merge then concatenates the tables of all shards in the Results folder
+public class HeadlessRunner {
+
+    private static final Pattern SHARD_DIR = Pattern.compile("shard_(\\d+)_of_(\\d+)");
+
+
+    public static void main(String[] args) {
+        try {
+            System.exit(run(args));
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+
+    public static int run(String[] args) throws Exception {
+        Properties props = new Properties();
+        Properties overrides = new Properties();
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                System.out.println("Usage: --dir <images folder> [--config <file>] [--shard i/N] [--<setting> <value>]... | --merge <Results folder>");
+                return(2);
+            }
+            overrides.setProperty(args[i].substring(2), args[i+1]);
+        }
+        if (overrides.getProperty("config") != null) {
+            try (Reader config = new InputStreamReader(new FileInputStream(overrides.getProperty("config")), StandardCharsets.UTF_8)) {
+                props.load(config);
+            }
+        }
+        props.putAll(overrides);
+
+        if (props.getProperty("merge") != null) {
+            mergeShards(props.getProperty("merge"));
+            return(0);
+        }
+        String imageDir = props.getProperty("dir");
+        if (imageDir == null) {
+            System.out.println("No images folder (--dir)");
+            return(2);
+        }
+        int shard = 0, nShards = 1;
+        if (props.getProperty("shard") != null) {
+            String[] fields = props.getProperty("shard").split("/");
+            shard = Integer.parseInt(fields[0]);
+            nShards = Integer.parseInt(fields[1]);
+            if (shard < 0 || shard >= nShards)
+                throw new IllegalArgumentException("Shard must be i/N with 0 <= i < N");
+        }
+        return(analyze(imageDir, props, shard, nShards));
+    }
+
+
+    private static int analyze(String imageDir, Properties props, int shard, int nShards) throws Exception {
+        Tools tools = new Tools();
+        String fileExt = tools.findImageType(new File(imageDir));
+        ArrayList<String> imageFiles = tools.findImages(imageDir, fileExt);
+        if (imageFiles == null || imageFiles.isEmpty()) {
+            System.out.println("No images found in " + imageDir);
+            return(1);
+        }
+        ArrayList<String> shardFiles = new ArrayList<>();
+        for (int i = shard; i < imageFiles.size(); i += nShards)
+            shardFiles.add(imageFiles.get(i));
+
+        String outDirResults = imageDir + File.separator + "Results" + File.separator;
+        if (nShards > 1)
+            outDirResults += "shard_" + shard + "_of_" + nShards + File.separator;
+        new File(outDirResults).mkdirs();
+        if (shardFiles.isEmpty()) {
+            System.out.println("No image in shard " + shard + "/" + nShards);
+            return(0);
+        }
+
+        // Calibration and channels of the first image, as in the plugin (calibration can be overridden by pixelSize)
+        ServiceFactory factory = new ServiceFactory();
+        OMEXMLService service = factory.getInstance(OMEXMLService.class);
+        IMetadata meta = service.createOMEXMLMetadata();
+        ImageProcessorReader reader = new ImageProcessorReader();
+        reader.setMetadataStore(meta);
+        reader.setId(imageFiles.get(0));
+        tools.findImageCalib(meta);
+        String[] channels = tools.findChannels(imageFiles.get(0), meta, reader);
+        reader.close();
+        tools.setSettings(props);
+        String[] chs = {props.getProperty("phase", channels[0]), props.getProperty("fluo", channels[Math.min(1, channels.length-1)])};
+        int[] indexChs = {channelIndex(channels, chs[0]), channelIndex(channels, chs[1])};
+
+        RunManifest manifest = RunManifest.open(outDirResults, tools.analysisSettings(chs), ResultsSink.files(tools.binaryResults));
+        boolean failed;
+        try {
+            ResultsSink results = ResultsSink.open(tools.binaryResults, manifest);
+            tools.openMaskCache();
+            tools.startSegmentation();
+            int measureThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+            AnalysisPipeline pipeline = new AnalysisPipeline(tools, outDirResults, results)
+                    .setThreads(tools.parallelImages, tools.parallelImages, measureThreads, 1)
+                    .setManifest(manifest)
+                    .setPrometheusMetrics(tools.prometheusMetrics);
+            pipeline.run(shardFiles, indexChs);
+            failed = !pipeline.getFailedImages().isEmpty();
+        } finally {
+            tools.stopSegmentation();
+            manifest.close();
+        }
+        System.out.println("--Done !--");
+        // Failed images are resumed by running the shard again
+        return(failed ? 1 : 0);
+    }
+
+
+    // Channel given by its name or its index
+    private static int channelIndex(String[] channels, String channel) {
+        int index = ArrayUtils.indexOf(channels, channel);
+        if (index < 0)
+            index = Integer.parseInt(channel);
+        if (index < 0 || index >= channels.length)
+            throw new IllegalArgumentException("Unknown channel " + channel + ", channels are " + Arrays.toString(channels));
+        return(index);
+    }
+
+
+    // Concatenate the results tables of all shards of resultsDir (up to the last checkpoint of each shard)
+    // The shard folders must be those of a single split, shard_0_of_N to shard_N-1_of_N
+    public static void mergeShards(String resultsDir) throws IOException {
+        File[] shardDirs = new File(resultsDir).listFiles((dir, name) -> SHARD_DIR.matcher(name).matches());
+        if (shardDirs == null || shardDirs.length == 0)
+            throw new IOException("No shard folder in " + resultsDir);
+        Arrays.sort(shardDirs, (a, b) -> Integer.compare(shardIndex(a), shardIndex(b)));
+        int nShards = shardCount(shardDirs[0]);
+        for (int i = 0; i < shardDirs.length; i++)
+            if (shardCount(shardDirs[i]) != nShards || shardIndex(shardDirs[i]) >= nShards)
+                throw new IOException("Shards of different or invalid splits in " + resultsDir + ": " + shardDirs[0].getName() + ", " + shardDirs[i].getName());
+        ArrayList<String> missing = new ArrayList<>();
+        for (int i = 0, d = 0; i < nShards; i++) {
+            if (d < shardDirs.length && shardIndex(shardDirs[d]) == i)
+                d++;
+            else
+                missing.add("shard_" + i + "_of_" + nShards);
+        }
+        if (!missing.isEmpty())
+            throw new IOException("Missing shard folders in " + resultsDir + ": " + String.join(", ", missing));
+
+        LinkedHashMap<String, Long> fileNames = RunManifest.checkpointedSizes(shardDirs[0].getPath());
+        for (String name : fileNames.keySet()) {
+            byte[] header = ResultsSink.files(name.endsWith(".bin")).get(name);
+            int merged = 0;
+            try (FileOutputStream out = new FileOutputStream(new File(resultsDir, name))) {
+                out.write(header);
+                for (File shardDir : shardDirs) {
+                    Map<String, Long> sizes = RunManifest.checkpointedSizes(shardDir.getPath());
+                    // Shard without image or not started
+                    if (!sizes.containsKey(name)) {
+                        System.out.println("WARNING: skipping " + shardDir.getName() + ", no checkpointed " + name);
+                        continue;
+                    }
+                    try (FileInputStream in = new FileInputStream(new File(shardDir, name))) {
+                        byte[] shardHeader = new byte[header.length];
+                        if (in.read(shardHeader) != header.length || !Arrays.equals(header, shardHeader))
+                            throw new IOException(name + " of " + shardDir.getName() + " does not have the expected header");
+                        FileChannel channel = in.getChannel();
+                        long end = sizes.get(name);
+                        for (long pos = header.length; pos < end; ) {
+                            long n = channel.transferTo(pos, end - pos, out.getChannel());
+                            if (n <= 0)
+                                throw new IOException(name + " of " + shardDir.getName() + " is shorter than its checkpointed size " + end);
+                            pos += n;
+                        }
+                    }
+                    merged++;
+                }
+            }
+            System.out.println(name + " merged from " + merged + " of " + nShards + " shards");
+        }
+    }
+
+
+    private static int shardIndex(File shardDir) {
+        Matcher m = SHARD_DIR.matcher(shardDir.getName());
+        return(m.matches() ? Integer.parseInt(m.group(1)) : -1);
+    }
+
+
+    private static int shardCount(File shardDir) {
+        Matcher m = SHARD_DIR.matcher(shardDir.getName());
+        return(m.matches() ? Integer.parseInt(m.group(2)) : -1);
+    }
+}
@@ -0,0 +1,113 @@
+package Fluo_Ratio_Bact_Bg;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.image3d.ImageShort;
+
+// Mapping between the grid of a label plane (segmentation grid, frames upscaled scale times for Omnipose) and the native
+// grid of the frames, computed from pixel coordinates on the fly so that neither the frames nor the masks are resized
+// Sampling of the labels on the native grid:
+//   nearest: a native pixel belongs to the object of the label pixel at its center (whole native pixels)
+//   area   : each label pixel counts for the part of the native pixel it covers (1/scale² of it), intensities are
+//            averaged over the native pixels weighted by their covered part
+public class LabelGrid {
+
+    public final int gridWidth, gridHeight, nativeWidth, nativeHeight;
+    public final boolean areaWeighted;
+    private final double scaleX, scaleY;
+    // Native pixel of each label column/row, label column/row at the center of each native column/row
+    private final int[] nativeX, nativeY, centerX, centerY;
+
+
+    public LabelGrid(int gridWidth, int gridHeight, int nativeWidth, int nativeHeight, boolean areaWeighted) {
+        this.gridWidth = gridWidth;
+        this.gridHeight = gridHeight;
+        this.nativeWidth = nativeWidth;
+        this.nativeHeight = nativeHeight;
+        this.areaWeighted = areaWeighted;
+        scaleX = (double) gridWidth / nativeWidth;
+        scaleY = (double) gridHeight / nativeHeight;
+        nativeX = toNative(gridWidth, nativeWidth, scaleX);
+        nativeY = toNative(gridHeight, nativeHeight, scaleY);
+        centerX = toGrid(nativeWidth, gridWidth, scaleX);
+        centerY = toGrid(nativeHeight, gridHeight, scaleY);
+    }
+
+
+    // Identity mapping
+    public LabelGrid(int width, int height) {
+        this(width, height, width, height, false);
+    }
+
+
+    private static int[] toNative(int gridLength, int nativeLength, double scale) {
+        int[] coords = new int[gridLength];
+        for (int u = 0; u < gridLength; u++)
+            coords[u] = Math.min(nativeLength - 1, (int) ((u + 0.5) / scale));
+        return(coords);
+    }
+
+
+    private static int[] toGrid(int nativeLength, int gridLength, double scale) {
+        int[] coords = new int[nativeLength];
+        for (int x = 0; x < nativeLength; x++)
+            coords[x] = Math.min(gridLength - 1, (int) ((x + 0.5) * scale));
+        return(coords);
+    }
+
+
+    public boolean isIdentity() {
+        return(gridWidth == nativeWidth && gridHeight == nativeHeight);
+    }
+
+    // Label pixels per native pixel, along x and y
+    public double getScaleX() {
+        return(scaleX);
+    }
+
+    public double getScaleY() {
+        return(scaleY);
+    }
+
+    // Native pixel index of the label pixel (u, v)
+    public int nativeIndex(int u, int v) {
+        return(nativeY[v]*nativeWidth + nativeX[u]);
+    }
+
+    // Part of its native pixel covered by the label pixel (u, v), 0 if it is not sampled (nearest)
+    public double weight(int u, int v) {
+        if (areaWeighted)
+            return(1 / (scaleX*scaleY));
+        return((centerX[nativeX[u]] == u && centerY[nativeY[v]] == v) ? 1 : 0);
+    }
+
+    // Continuous label plane coordinates on the native grid (pixel centers at integer coordinates)
+    public double toNativeX(double u) {
+        return((u + 0.5) / scaleX - 0.5);
+    }
+
+    public double toNativeY(double v) {
+        return((v + 0.5) / scaleY - 0.5);
+    }
+
+
+    // Labels of the native pixels (nearest sampling), the label plane is only read
+    public ShortProcessor nativeLabels(ImageProcessor labels) {
+        short[] pixels = new short[nativeWidth*nativeHeight];
+        for (int y = 0, i = 0; y < nativeHeight; y++) {
+            int row = centerY[y]*gridWidth;
+            for (int x = 0; x < nativeWidth; x++, i++)
+                pixels[i] = (short) labels.getf(row + centerX[x]);
+        }
+        return(new ShortProcessor(nativeWidth, nativeHeight, pixels, null));
+    }
+
+
+    // Objects of a population living on the label grid drawn on the native grid
+    public ShortProcessor drawNative(Objects3DIntPopulation pop) {
+        ImageShort labels = new ImageShort("labels", gridWidth, gridHeight, 1);
+        pop.drawInImage(labels);
+        ImageProcessor ip = labels.getImagePlus().getProcessor();
+        return(isIdentity() ? (ShortProcessor) ip : nativeLabels(ip));
+    }
+}
@@ -0,0 +1,145 @@
+package Fluo_Ratio_Bact_Bg;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+
+// Measurements of all the objects of a label image in a single scan over the label plane and an intensity plane
+// Results are stored in primitive arrays indexed by label (label 0 is the background)
+// The label plane can be on a finer grid than the intensity plane (LabelGrid): counts, centroids and bounding boxes are then
+// in label pixels, areas (in native pixels) and intensities are sampled on the native grid
+public class LabelMeasurements {
+
+    private final int maxLabel;
+    private final int[] count;
+    private final double[] area;
+    private final double[] sum;
+    private final double[] sumSq;
+    private final int[] minX, maxX, minY, maxY;
+    private final long[] sumX, sumY;
+
+
+    public LabelMeasurements(int maxLabel) {
+        this.maxLabel = maxLabel;
+        count = new int[maxLabel + 1];
+        area = new double[maxLabel + 1];
+        sum = new double[maxLabel + 1];
+        sumSq = new double[maxLabel + 1];
+        minX = new int[maxLabel + 1];
+        maxX = new int[maxLabel + 1];
+        minY = new int[maxLabel + 1];
+        maxY = new int[maxLabel + 1];
+        sumX = new long[maxLabel + 1];
+        sumY = new long[maxLabel + 1];
+        Arrays.fill(minX, Integer.MAX_VALUE);
+        Arrays.fill(minY, Integer.MAX_VALUE);
+        Arrays.fill(maxX, -1);
+        Arrays.fill(maxY, -1);
+    }
+
+
+    // Scan labels and intensity planes (same size), intensity can be null to get only the shape measurements
+    public static LabelMeasurements measure(ImageProcessor labels, ImageProcessor intensity, int maxLabel) {
+        LabelMeasurements measures = new LabelMeasurements(maxLabel);
+        int width = labels.getWidth();
+        int height = labels.getHeight();
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, i++) {
+                int label = (int) labels.getf(i);
+                if (label <= 0 || label > maxLabel)
+                    continue;
+                double value = (intensity != null) ? intensity.getf(i) : 0;
+                measures.add(label, x, y, value, 1);
+            }
+        }
+        return(measures);
+    }
+
+
+    // Labels on the grid of the label plane, intensities on the native grid (size of the intensity plane)
+    public static LabelMeasurements measure(ImageProcessor labels, ImageProcessor intensity, int maxLabel, LabelGrid grid) {
+        if (grid.isIdentity())
+            return(measure(labels, intensity, maxLabel));
+        LabelMeasurements measures = new LabelMeasurements(maxLabel);
+        for (int v = 0, i = 0; v < grid.gridHeight; v++) {
+            for (int u = 0; u < grid.gridWidth; u++, i++) {
+                int label = (int) labels.getf(i);
+                if (label <= 0 || label > maxLabel)
+                    continue;
+                double value = (intensity != null) ? intensity.getf(grid.nativeIndex(u, v)) : 0;
+                measures.add(label, u, v, value, grid.weight(u, v));
+            }
+        }
+        return(measures);
+    }
+
+
+    // Label pixel (x, y) covering weight native pixel
+    private void add(int label, int x, int y, double value, double weight) {
+        count[label]++;
+        area[label] += weight;
+        sum[label] += value*weight;
+        sumSq[label] += value*value*weight;
+        sumX[label] += x;
+        sumY[label] += y;
+        if (x < minX[label]) minX[label] = x;
+        if (x > maxX[label]) maxX[label] = x;
+        if (y < minY[label]) minY[label] = y;
+        if (y > maxY[label]) maxY[label] = y;
+    }
+
+
+    public int getMaxLabel() {
+        return maxLabel;
+    }
+
+    // Number of pixels of the object in the label plane
+    public int getCount(int label) {
+        return count[label];
+    }
+
+    // Area of the object in native pixels (number of pixels without a LabelGrid)
+    public double getArea(int label) {
+        return area[label];
+    }
+
+    public double getIntensitySum(int label) {
+        return sum[label];
+    }
+
+    public double getIntensityMean(int label) {
+        return sum[label] / area[label];
+    }
+
+    // Sample standard deviation, as in ImageJ and mcib3d
+    public double getIntensityStdDev(int label) {
+        double n = area[label];
+        if (n < 2)
+            return 0;
+        double mean = sum[label] / n;
+        return Math.sqrt(Math.max(0, (sumSq[label] - n*mean*mean) / (n - 1)));
+    }
+
+    public double getCentroidX(int label) {
+        return (double) sumX[label] / count[label];
+    }
+
+    public double getCentroidY(int label) {
+        return (double) sumY[label] / count[label];
+    }
+
+    // Bounding box, inclusive pixel coordinates
+    public int getMinX(int label) {
+        return minX[label];
+    }
+
+    public int getMaxX(int label) {
+        return maxX[label];
+    }
+
+    public int getMinY(int label) {
+        return minY[label];
+    }
+
+    public int getMaxY(int label) {
+        return maxY[label];
+    }
+}
@@ -0,0 +1,164 @@
+package Fluo_Ratio_Bact_Bg;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// On-disk cache of segmentation masks, keyed by the SHA-256 of a phase plane and of the segmentation settings
+// so that re-running the same images with other size limits or background method does not run Omnipose again
+// Masks are stored deflated as 16-bit labels, one file per key; least recently used masks are deleted when the cache exceeds its size
+// (file modification time keeps the access order from one run to the next)
+public class MaskCache {
+
+    private static final String EXT = ".mask";
+
+    private final File dir;
+    private final long maxBytes;
+    // Key -> file size, in access order
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+
+    public MaskCache(File dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir.toPath());
+        File[] files = dir.listFiles((d, name) -> name.endsWith(EXT));
+        if (files != null) {
+            Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+            for (File f : files) {
+                entries.put(f.getName().substring(0, f.getName().length() - EXT.length()), f.length());
+                totalBytes += f.length();
+            }
+        }
+        evict();
+    }
+
+
+    // Cache key of a phase plane segmented with the given settings
+    public static String key(ImageProcessor phase, String settings) {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        sha.update(settings.getBytes(StandardCharsets.UTF_8));
+        int width = phase.getWidth(), height = phase.getHeight();
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(8, 4*width));
+        buffer.putInt(width).putInt(height);
+        sha.update(buffer.array(), 0, 8);
+        short[] shorts = (phase.getPixels() instanceof short[]) ? (short[]) phase.getPixels() : null;
+        for (int y = 0, i = 0; y < height; y++) {
+            buffer.clear();
+            for (int x = 0; x < width; x++, i++) {
+                if (shorts != null)
+                    buffer.putShort(shorts[i]);
+                else
+                    buffer.putFloat(phase.getf(i));
+            }
+            sha.update(buffer.array(), 0, buffer.position());
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : sha.digest())
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return(hex.toString());
+    }
+
+
+    // Cached mask, null if the key is unknown or the mask cannot be read
+    public ShortProcessor get(String key) {
+        synchronized (this) {
+            if (entries.get(key) == null)
+                return(null);
+        }
+        File file = new File(dir, key + EXT);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new FileInputStream(file)), 1 << 16))) {
+            int width = in.readInt();
+            int height = in.readInt();
+            short[] pixels = new short[width*height];
+            for (int i = 0; i < pixels.length; i++)
+                pixels[i] = in.readShort();
+            file.setLastModified(System.currentTimeMillis());
+            return(new ShortProcessor(width, height, pixels, null));
+        } catch (IOException ex) {
+            remove(key);
+            return(null);
+        }
+    }
+
+
+    // Masks with labels above 65535 are not cached, they would not fit in 16 bits
+    public void put(String key, ImageProcessor mask) {
+        if (!(mask instanceof ShortProcessor)) {
+            for (int i = 0; i < mask.getPixelCount(); i++)
+                if (mask.getf(i) > 65535)
+                    return;
+        }
+        ShortProcessor labels = (mask instanceof ShortProcessor) ? (ShortProcessor) mask : (ShortProcessor) mask.convertToShort(false);
+        short[] pixels = (short[]) labels.getPixels();
+        File file = new File(dir, key + EXT);
+        try {
+            // Written to a temp file then renamed, so that another run never reads a partial mask
+            File tmp = File.createTempFile("mask_" + key, ".tmp", dir);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(new FileOutputStream(tmp)), 1 << 16))) {
+                out.writeInt(labels.getWidth());
+                out.writeInt(labels.getHeight());
+                for (short p : pixels)
+                    out.writeShort(p);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            System.out.println("Could not cache mask: " + ex.getMessage());
+            return;
+        }
+        synchronized (this) {
+            Long old = entries.put(key, file.length());
+            totalBytes += file.length() - ((old == null) ? 0 : old);
+            evict();
+        }
+    }
+
+
+    private synchronized void remove(String key) {
+        Long size = entries.remove(key);
+        if (size != null)
+            totalBytes -= size;
+        new File(dir, key + EXT).delete();
+    }
+
+
+    // Delete least recently used masks until the cache fits in its size
+    private synchronized void evict() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            new File(dir, eldest.getKey() + EXT).delete();
+            totalBytes -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+
+    public synchronized long getSizeBytes() {
+        return totalBytes;
+    }
+}
@@ -0,0 +1,107 @@
+package Fluo_Ratio_Bact_Bg;
+import Fluo_Ratio_Bact_Bg_Tools.CellposeSegmentImgPlusAdvanced;
+import Fluo_Ratio_Bact_Bg_Tools.CellposeTaskSettings;
+import Fluo_Ratio_Bact_Bg_Tools.CellposeWorker;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.apache.commons.io.output.NullPrintStream;
+
+// Omnipose segmentation of all the frames of a call in a single Python call
+// Once started, calls go to persistent Omnipose processes (one per image analyzed in parallel, the model is then loaded once
+// for the whole run), otherwise each call starts its own Python process
+public class OmniposeBackend implements SegmentationBackend {
+
+    private final CellposeTaskSettings settings;
+    private final String cacheSettings;
+    private final int nWorkers;
+    private final Calibration cal;
+    // Running Omnipose workers
+    private final BlockingQueue<CellposeWorker> workers = new LinkedBlockingQueue<>();
+    private final ArrayList<CellposeWorker> startedWorkers = new ArrayList<>();
+
+
+    public OmniposeBackend(CellposeTaskSettings settings, String cacheSettings, int nWorkers, Calibration cal) {
+        this.settings = settings;
+        this.cacheSettings = cacheSettings;
+        this.nWorkers = nWorkers;
+        this.cal = cal;
+    }
+
+
+    @Override
+    public void start() throws IOException {
+        for (int i = 0; i < nWorkers; i++) {
+            CellposeWorker worker = new CellposeWorker(settings.copy().setOutput(new NullPrintStream()));
+            startedWorkers.add(worker);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+
+    @Override
+    public ImageProcessor[] segment(ImageStack frames, String imageName, int[] frameNumbers) {
+        ImagePlus imgIn = new ImagePlus(imageName, frames);
+        imgIn.setDimensions(1, 1, frames.getSize());
+        imgIn.setCalibration(cal);
+
+        // Omnipose messages are captured for this call only and shown if it fails
+        ByteArrayOutputStream omniposeOutput = new ByteArrayOutputStream();
+        CellposeTaskSettings callSettings = settings.copy().setOutput(new PrintStream(omniposeOutput, true));
+        CellposeWorker worker = startedWorkers.isEmpty() ? null : takeWorker();
+        ImagePlus imgOut;
+        try {
+            imgOut = new CellposeSegmentImgPlusAdvanced(callSettings, imgIn, worker).run();
+        } catch (IOException ex) {
+            System.out.println(omniposeOutput.toString());
+            throw new IllegalStateException("Omnipose segmentation failed on " + imageName, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Omnipose segmentation interrupted on " + imageName, ex);
+        } finally {
+            if (worker != null)
+                workers.add(worker);
+        }
+
+        // One mask per frame in the output stack
+        ImageProcessor[] masks = new ImageProcessor[frames.getSize()];
+        for (int i = 0; i < masks.length; i++)
+            masks[i] = imgOut.getStack().getProcessor(i+1);
+        imgOut.flush();
+        imgOut.close();
+        return(masks);
+    }
+
+
+    private CellposeWorker takeWorker() {
+        try {
+            return(workers.take());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        }
+    }
+
+
+    @Override
+    public void stop() {
+        for (CellposeWorker worker : startedWorkers)
+            worker.stop();
+        startedWorkers.clear();
+        workers.clear();
+    }
+
+
+    @Override
+    public String settings() {
+        return(cacheSettings);
+    }
+}
@@ -0,0 +1,186 @@
+package Fluo_Ratio_Bact_Bg;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.plugin.RGBStackMerge;
+import ij.process.ImageProcessor;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import loci.common.DataTools;
+import loci.formats.FormatTools;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import loci.formats.out.OMETiffWriter;
+import loci.formats.out.TiffWriter;
+import mcib3d.geom2.Objects3DIntPopulation;
+
+// Overlays of the bacteria streamed into one LZW-compressed OME-TIFF per image (<image>_bacteria.ome.tif) instead of one
+// TIFF per frame. Frames are queued and drawn/compressed/written by a background thread, the analysis only waits when the
+// queue is full. Frames of an image must be given in frame order (frames of several images can be interleaved)
+//   labels + phase: 2 channels per frame (16-bit labels and phase), apply a LUT (glasbey on dark) to the labels channel
+//   labels only: 16-bit label planes, colour composites are built later with the phase of the original image (composite())
+// A run resumed from frame t writes its overlays in <image>_from_t<t>_bacteria.ome.tif
+public class OverlaySink implements Closeable {
+
+    public static final String SUFFIX = "_bacteria.ome.tif";
+
+    private final String outDir;
+    private final boolean labelsOnly;
+    private final StageMetrics metrics;
+    private final BlockingQueue<Overlay> queue;
+    private final Thread writerThread;
+    private volatile Exception failure = null;
+    private boolean closed = false;
+    // Open overlay files, only used by the writer thread
+    private final Map<String, OMETiffWriter> writers = new HashMap<>();
+
+    private static final Overlay END = new Overlay(null, 0, 0, 0, null, null, 1, null);
+
+
+    public OverlaySink(String outDir, boolean labelsOnly, int queueCapacity, StageMetrics metrics) {
+        this.outDir = outDir;
+        this.labelsOnly = labelsOnly;
+        this.metrics = metrics;
+        queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        writerThread = new Thread(this::writeOverlays, "overlay writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+
+    // Queue the overlay of frame t of an image whose frames first..last are analyzed
+    // The phase processor and the population must not be modified afterwards
+    public void write(String rootName, int t, int first, int last, ImageProcessor phase, Objects3DIntPopulation pop, float scale, Calibration cal) throws IOException {
+        checkFailure();
+        try {
+            queue.put(new Overlay(rootName, t, first, last, phase, pop, scale, cal));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }
+    }
+
+
+    private void checkFailure() throws IOException {
+        if (failure != null)
+            throw new IOException("Overlay writing failed", failure);
+    }
+
+
+    // Writer thread: after a failure, overlays are still taken from the queue (and dropped) so that the analysis does not block
+    private void writeOverlays() {
+        try {
+            for (Overlay overlay = queue.take(); overlay != END; overlay = queue.take()) {
+                if (failure != null)
+                    continue;
+                try {
+                    StageMetrics.Probe probe = metrics.begin();
+                    writeOverlay(overlay);
+                    metrics.end(probe, "overlay", overlay.rootName, overlay.t, 1, overlay.pop.getNbObjects());
+                } catch (Exception ex) {
+                    failure = ex;
+                }
+            }
+        } catch (InterruptedException ex) {
+            failure = ex;
+        }
+    }
+
+
+    private void writeOverlay(Overlay overlay) throws Exception {
+        int width = overlay.phase.getWidth(), height = overlay.phase.getHeight();
+        int nChannels = labelsOnly ? 1 : 2;
+        OMETiffWriter writer = writers.get(overlay.rootName);
+        if (writer == null) {
+            writer = openWriter(overlay, width, height, nChannels);
+            writers.put(overlay.rootName, writer);
+        }
+        int plane = (overlay.t - overlay.first)*nChannels;
+        // Bacteria of upscaled frames are mapped back to the native grid
+        LabelGrid grid = new LabelGrid((int) (width*overlay.scale), (int) (height*overlay.scale), width, height, false);
+        writer.saveBytes(plane, DataTools.shortsToBytes((short[]) grid.drawNative(overlay.pop).getPixels(), false));
+        if (!labelsOnly)
+            writer.saveBytes(plane + 1, DataTools.shortsToBytes((short[]) overlay.phase.convertToShort(false).getPixels(), false));
+        if (overlay.t == overlay.last) {
+            writer.close();
+            writers.remove(overlay.rootName);
+        }
+    }
+
+
+    private OMETiffWriter openWriter(Overlay overlay, int width, int height, int nChannels) throws Exception {
+        int nFrames = overlay.last - overlay.first + 1;
+        String name = overlay.rootName + ((overlay.first > 1) ? "_from_t" + overlay.first : "");
+        File file = new File(outDir, name + SUFFIX);
+        // Writers append planes to an existing file
+        file.delete();
+        IMetadata meta = MetadataTools.createOMEXMLMetadata();
+        MetadataTools.populateMetadata(meta, 0, name, false, "XYCZT", FormatTools.getPixelTypeString(FormatTools.UINT16),
+                width, height, 1, nChannels, nFrames, 1);
+        meta.setPixelsPhysicalSizeX(FormatTools.getPhysicalSizeX(overlay.cal.pixelWidth), 0);
+        meta.setPixelsPhysicalSizeY(FormatTools.getPhysicalSizeY(overlay.cal.pixelHeight), 0);
+        OMETiffWriter writer = new OMETiffWriter();
+        writer.setMetadataRetrieve(meta);
+        writer.setCompression(TiffWriter.COMPRESSION_LZW);
+        writer.setWriteSequentially(true);
+        // Uncompressed size over 4 GB
+        writer.setBigTiff(2L*width*height*nChannels*nFrames > 0xffffffffL);
+        writer.setId(file.getPath());
+        return(writer);
+    }
+
+
+    // Write the queued overlays and close the files, throws the first writing failure
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            queue.put(END);
+            writerThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }
+        // Files of images not analyzed to the end (failed run)
+        for (OMETiffWriter writer : writers.values())
+            writer.close();
+        writers.clear();
+        checkFailure();
+    }
+
+
+    // Colour composite of label images (glasbey LUT) and phase images of the same dimensions, as the per-frame overlays
+    public static ImagePlus composite(ImagePlus labels, ImagePlus phase) {
+        IJ.run(labels, "glasbey on dark", "");
+        ImagePlus[] imgColors = {labels, phase};
+        return(new RGBStackMerge().mergeHyperstacks(imgColors, false));
+    }
+
+
+    private static class Overlay {
+        final String rootName;
+        final int t, first, last;
+        final ImageProcessor phase;
+        final Objects3DIntPopulation pop;
+        final float scale;
+        final Calibration cal;
+
+        Overlay(String rootName, int t, int first, int last, ImageProcessor phase, Objects3DIntPopulation pop, float scale, Calibration cal) {
+            this.rootName = rootName;
+            this.t = t;
+            this.first = first;
+            this.last = last;
+            this.phase = phase;
+            this.pop = pop;
+            this.scale = scale;
+            this.cal = cal;
+        }
+    }
+}
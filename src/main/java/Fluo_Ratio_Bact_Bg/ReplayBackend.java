@@ -0,0 +1,62 @@
+package Fluo_Ratio_Bact_Bg;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import java.io.File;
+
+// Deterministic stand-in for Omnipose: masks are read from precomputed label stacks, so that the whole analysis
+// can be load-tested and profiled on machines without Python or GPU
+// Masks of an image are in <masks folder>/<image name>_masks.tif, one label plane per frame of the time-lapse
+// Masks of another size than the segmented frames (native size while frames are upscaled) are resized with nearest neighbour
+public class ReplayBackend implements SegmentationBackend {
+
+    public static final String MASKS_SUFFIX = "_masks.tif";
+
+    private final File masksDir;
+
+
+    public ReplayBackend(File masksDir) {
+        this.masksDir = masksDir;
+    }
+
+
+    @Override
+    public void start() {
+        if (!masksDir.isDirectory())
+            throw new IllegalStateException("Replay masks folder " + masksDir + " does not exist");
+    }
+
+
+    @Override
+    public ImageProcessor[] segment(ImageStack frames, String imageName, int[] frameNumbers) {
+        File file = new File(masksDir, imageName + MASKS_SUFFIX);
+        if (!file.exists())
+            throw new IllegalStateException("No replay masks for " + imageName + " (" + file + ")");
+        // Opened as a virtual stack, only the planes of the asked frames are read
+        ImagePlus imgMasks = IJ.openVirtual(file.getPath());
+        if (imgMasks == null)
+            throw new IllegalStateException("Cannot open replay masks " + file);
+        ImageStack stack = imgMasks.getStack();
+        ImageProcessor[] masks = new ImageProcessor[frameNumbers.length];
+        for (int i = 0; i < frameNumbers.length; i++) {
+            if (frameNumbers[i] > stack.getSize())
+                throw new IllegalStateException(file + " has no mask for frame " + frameNumbers[i]);
+            ImageProcessor mask = stack.getProcessor(frameNumbers[i]);
+            if (mask.getWidth() != frames.getWidth() || mask.getHeight() != frames.getHeight()) {
+                mask.setInterpolationMethod(ImageProcessor.NONE);
+                mask = mask.resize(frames.getWidth(), frames.getHeight());
+            }
+            masks[i] = mask;
+        }
+        imgMasks.close();
+        return(masks);
+    }
+
+
+    // Reading the masks again is as fast as reading them from the cache
+    @Override
+    public String settings() {
+        return(null);
+    }
+}
@@ -0,0 +1,28 @@
+package Fluo_Ratio_Bact_Bg;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+
+// Destination of the fluo and shape results tables
+// Rows are buffered and written to the files by batches, a write returns true when the buffered rows reached the files
+// (frames written before can then be recorded as done in the run manifest)
+public interface ResultsSink {
+
+    // Add the rows of one frame, returns true if all buffered rows have been written to the files
+    boolean write(FrameResults frame) throws IOException;
+
+    // Write all buffered rows to the files
+    void flush() throws IOException;
+
+
+    // Results files with their header, tab-separated text or binary columnar tables
+    static LinkedHashMap<String, byte[]> files(boolean binary) {
+        return(binary ? ColumnarResultsSink.files() : TsvResultsSink.files());
+    }
+
+
+    static ResultsSink open(boolean binary, RunManifest manifest) {
+        if (binary)
+            return(new ColumnarResultsSink(manifest.getOutput(ColumnarResultsSink.FLUO_FILE), manifest.getOutput(ColumnarResultsSink.SHAPE_FILE)));
+        return(new TsvResultsSink(manifest.getOutput(TsvResultsSink.FLUO_FILE), manifest.getOutput(TsvResultsSink.SHAPE_FILE)));
+    }
+}
@@ -0,0 +1,226 @@
+package Fluo_Ratio_Bact_Bg;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Progress manifest of a batch run in the Results folder, so that an interrupted run can be restarted where it stopped
+// One line per frame written, with the size of each results file after its rows:
+//   settings <analysis settings> <results files>
+//   headers  <offset of file 1> <offset of file 2> ...
+//   tracks   <image> <frame> <tracker state after the frame> (CellTracker.state(), just before the frame line, only for
+//            the last frame of an image of a checkpoint batch)
+//   frame    <image> <frame> <offset of file 1> <offset of file 2> ...
+// On restart with the same settings, results files are truncated to the last checkpoint (anything written after it
+// is a partial write) and appended to, frames already written are skipped and tracks continue from the tracker state
+// of the last frame written of each image
+// Otherwise (no manifest, other settings, results files shorter than recorded) results files are rebuilt from scratch
+public class RunManifest implements Closeable {
+
+    public static final String MANIFEST_FILE = "progress_manifest.txt";
+
+    // Results file name -> output stream
+    private final LinkedHashMap<String, FileOutputStream> outputs = new LinkedHashMap<>();
+    private final BufferedWriter manifest;
+    // Last frame written of each image, tracker state after it
+    private final Map<String, Integer> lastFrames = new HashMap<>();
+    private final Map<String, String> trackStates = new HashMap<>();
+    private final boolean resumed;
+
+
+    private RunManifest(File outDir, Collection<String> files, Checkpoint last, boolean resumed) throws IOException {
+        this.resumed = resumed;
+        File manifestFile = new File(outDir, MANIFEST_FILE);
+        int i = 0;
+        for (String name : files) {
+            File file = new File(outDir, name);
+            if (resumed)
+                truncate(file, last.offsets[i++]);
+            outputs.put(name, new FileOutputStream(file, resumed));
+        }
+        if (resumed)
+            truncate(manifestFile, last.manifestOffset);
+        manifest = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(manifestFile, resumed), StandardCharsets.UTF_8));
+    }
+
+
+    // Resume the run recorded in outDir if it was done with the same settings and results files,
+    // otherwise start a new run, writing the given header at the start of each results file
+    public static RunManifest open(String outDir, String settings, LinkedHashMap<String, byte[]> files) throws IOException {
+        File dir = new File(outDir);
+        String runSettings = (settings + "\t" + String.join(",", files.keySet())).replace('\n', ' ');
+        Map<String, Integer> lastFrames = new HashMap<>();
+        Map<String, String> trackStates = new HashMap<>();
+        Checkpoint last = readManifest(new File(dir, MANIFEST_FILE), runSettings, lastFrames, trackStates);
+        boolean resumable = last != null;
+        int i = 0;
+        for (String name : files.keySet())
+            resumable = resumable && new File(dir, name).length() >= last.offsets[i++];
+        if (resumable) {
+            RunManifest run = new RunManifest(dir, files.keySet(), last, true);
+            run.lastFrames.putAll(lastFrames);
+            run.trackStates.putAll(trackStates);
+            System.out.println("Resuming previous run: " + lastFrames.size() + " image(s) already started");
+            return(run);
+        }
+        RunManifest run = new RunManifest(dir, files.keySet(), null, false);
+        for (Map.Entry<String, byte[]> file : files.entrySet())
+            run.outputs.get(file.getKey()).write(file.getValue());
+        run.manifest.write("settings\t" + runSettings + "\n");
+        run.checkpoint("headers");
+        return(run);
+    }
+
+
+    // Size of each results file of a run at its last checkpoint (rows written after it are partial), empty if there is no manifest
+    public static LinkedHashMap<String, Long> checkpointedSizes(String outDir) {
+        LinkedHashMap<String, Long> sizes = new LinkedHashMap<>();
+        File file = new File(outDir, MANIFEST_FILE);
+        Checkpoint last = readManifest(file, null, new HashMap<>(), new HashMap<>());
+        if (last == null)
+            return(sizes);
+        for (int i = 0; i < last.fileNames.length; i++)
+            sizes.put(last.fileNames[i], last.offsets[i]);
+        return(sizes);
+    }
+
+
+    // Last valid checkpoint of the manifest, null if there is none or the settings are not the same
+    // (settings null: any settings)
+    private static Checkpoint readManifest(File file, String settings, Map<String, Integer> lastFrames, Map<String, String> trackStates) {
+        if (!file.exists())
+            return(null);
+        Checkpoint last = null;
+        long offset = 0;
+        // Tracker state of the next frame line, only kept once that frame line is read
+        String[] tracks = null;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line = in.readLine();
+            if (line == null || !line.startsWith("settings\t") || (settings != null && !line.equals("settings\t" + settings)))
+                return(null);
+            String[] fileNames = line.substring(line.lastIndexOf('\t') + 1).split(",");
+            int nFiles = fileNames.length;
+            offset += line.getBytes(StandardCharsets.UTF_8).length + 1;
+            for (line = in.readLine(); line != null; line = in.readLine()) {
+                String[] fields = line.split("\t");
+                long lineEnd = offset + line.getBytes(StandardCharsets.UTF_8).length + 1;
+                // A line cut by a crash ends the manifest
+                if (lineEnd > file.length())
+                    break;
+                try {
+                    if (fields[0].equals("headers") && fields.length == 1 + nFiles) {
+                        last = new Checkpoint(fileNames, fields, 1, lineEnd);
+                    } else if (fields[0].equals("tracks") && fields.length == 4 && last != null) {
+                        tracks = fields;
+                    } else if (fields[0].equals("frame") && fields.length == 3 + nFiles && last != null) {
+                        int frame = Integer.parseInt(fields[2]);
+                        last = new Checkpoint(fileNames, fields, 3, lineEnd);
+                        lastFrames.put(fields[1], frame);
+                        if (tracks != null && tracks[1].equals(fields[1]) && tracks[2].equals(fields[2]))
+                            trackStates.put(fields[1], tracks[3]);
+                        else
+                            trackStates.remove(fields[1]);
+                        tracks = null;
+                    } else {
+                        break;
+                    }
+                } catch (NumberFormatException ex) {
+                    break;
+                }
+                offset = lineEnd;
+            }
+        } catch (IOException ex) {
+            return(null);
+        }
+        return(last);
+    }
+
+
+    private static void truncate(File file, long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+    }
+
+
+    // Results files must have been flushed
+    private void checkpoint(String entry) throws IOException {
+        StringBuilder line = new StringBuilder(entry);
+        for (FileOutputStream output : outputs.values())
+            line.append('\t').append(output.getChannel().position());
+        manifest.write(line.append('\n').toString());
+        manifest.flush();
+    }
+
+
+    // Record that the rows of a frame have been written to the results files (and flushed) with the tracker state after
+    // the frame (null if not tracked or a later frame of the image is recorded with it), frames of an image must be recorded in order
+    public synchronized void frameDone(String imageName, int frame, String trackState) throws IOException {
+        if (trackState != null)
+            manifest.write("tracks\t" + imageName + "\t" + frame + "\t" + trackState + "\n");
+        checkpoint("frame\t" + imageName + "\t" + frame);
+        lastFrames.put(imageName, frame);
+        if (trackState != null)
+            trackStates.put(imageName, trackState);
+        else
+            trackStates.remove(imageName);
+    }
+
+
+    // First frame of an image still to analyze
+    public synchronized int nextFrame(String imageName) {
+        return(lastFrames.getOrDefault(imageName, 0) + 1);
+    }
+
+
+    // Tracker state after the last frame written of an image, null if there is none
+    public synchronized String trackState(String imageName) {
+        return(trackStates.get(imageName));
+    }
+
+
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    // Output stream of a results file, positioned after its header or the last checkpoint
+    public OutputStream getOutput(String fileName) {
+        return outputs.get(fileName);
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        for (FileOutputStream output : outputs.values())
+            output.close();
+        manifest.close();
+    }
+
+
+    private static class Checkpoint {
+        final String[] fileNames;
+        final long[] offsets;
+        final long manifestOffset;
+
+        // Offsets of the results files are the fields of a manifest line from index first
+        Checkpoint(String[] fileNames, String[] fields, int first, long manifestOffset) {
+            this.fileNames = fileNames;
+            offsets = new long[fields.length - first];
+            for (int i = 0; i < offsets.length; i++)
+                offsets[i] = Long.parseLong(fields[first + i]);
+            this.manifestOffset = manifestOffset;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package Fluo_Ratio_Bact_Bg;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import java.io.IOException;
+
+// Segmentation of phase contrast frames into bacteria label images
+// Omnipose is the default backend, the replay one reads precomputed masks so that the analysis can run without Python
+public interface SegmentationBackend {
+
+    // Called once before the first frames are segmented (loads models, starts processes...)
+    default void start() throws IOException {
+    }
+
+
+    // One label image per plane of frames, with the size of the planes
+    // frameNumbers are the time-lapse frames (from 1) of the planes of the image imageName
+    // Throws IllegalStateException if the segmentation failed
+    ImageProcessor[] segment(ImageStack frames, String imageName, int[] frameNumbers);
+
+
+    // Same on frames upscaled by scale (Omnipose-friendly bacteria size), masks have the size of the upscaled planes
+    default ImageProcessor[] segment(ImageStack frames, float scale, String imageName, int[] frameNumbers) {
+        if (scale == 1)
+            return(segment(frames, imageName, frameNumbers));
+        return(segment(resize(frames, scale), imageName, frameNumbers));
+    }
+
+
+    default void stop() {
+    }
+
+
+    // Everything the masks depend on besides the phase planes, null if masks must not be kept in the mask cache
+    String settings();
+
+
+    // Planes upscaled by scale with bicubic interpolation
+    static ImageStack resize(ImageStack frames, float scale) {
+        int width = (int) (frames.getWidth()*scale), height = (int) (frames.getHeight()*scale);
+        ImageStack resized = new ImageStack(width, height);
+        for (int i = 1; i <= frames.getSize(); i++) {
+            ImageProcessor ip = frames.getProcessor(i);
+            ip.setInterpolationMethod(ImageProcessor.BICUBIC);
+            resized.addSlice(frames.getSliceLabel(i), ip.resize(width, height));
+        }
+        return(resized);
+    }
+}
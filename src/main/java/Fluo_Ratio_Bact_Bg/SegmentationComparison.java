@@ -0,0 +1,214 @@
+package Fluo_Ratio_Bact_Bg;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import loci.plugins.util.ImageProcessorReader;
+import org.apache.commons.io.FilenameUtils;
+
+// Agreement of a segmentation (classical by default) with reference masks, to check on a set of images that it can replace Omnipose
+//   java -cp <Fiji jars> Fluo_Ratio_Bact_Bg.SegmentationComparison --dir <images folder> --masks <reference masks folder>
+//        [--config <file.properties>] [--phase <channel index>] [--maxFrames <n>] [--<setting> <value>]...
+// Reference masks are read as by the replay segmentation (<image name>_masks.tif), images without reference masks are
+// segmented with Omnipose and their masks saved in the folder, so that they can also be replayed
+// Objects are matched one to one when their IoU is above 0.5 (raw masks, before border and size filtering), precision,
+// recall, F1 and mean IoU of the matched objects are printed per image and for all images
+public class SegmentationComparison {
+
+    public static final double MIN_IOU = 0.5;
+
+
+    public static void main(String[] args) {
+        try {
+            System.exit(run(args));
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+
+    public static int run(String[] args) throws Exception {
+        Properties props = new Properties();
+        Properties overrides = new Properties();
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                System.out.println("Usage: --dir <images folder> --masks <reference masks folder> [--config <file>] [--phase <channel index>] [--maxFrames <n>] [--<setting> <value>]...");
+                return(2);
+            }
+            overrides.setProperty(args[i].substring(2), args[i+1]);
+        }
+        if (overrides.getProperty("config") != null) {
+            try (Reader config = new InputStreamReader(new FileInputStream(overrides.getProperty("config")), StandardCharsets.UTF_8)) {
+                props.load(config);
+            }
+        }
+        props.putAll(overrides);
+        if (props.getProperty("dir") == null || props.getProperty("masks") == null) {
+            System.out.println("No images folder (--dir) or reference masks folder (--masks)");
+            return(2);
+        }
+        props.putIfAbsent("segmentation", "classical");
+        int phase = Integer.parseInt(props.getProperty("phase", "0"));
+        int maxFrames = Integer.parseInt(props.getProperty("maxFrames", "" + Integer.MAX_VALUE));
+
+        Tools tools = new Tools();
+        tools.setSettings(props);
+        File masksDir = new File(props.getProperty("masks"));
+        masksDir.mkdirs();
+        String imageDir = props.getProperty("dir");
+        ArrayList<String> imageFiles = tools.findImages(imageDir, tools.findImageType(new File(imageDir)));
+        if (imageFiles == null || imageFiles.isEmpty()) {
+            System.out.println("No images found in " + imageDir);
+            return(1);
+        }
+
+        SegmentationBackend tested = tools.segmentationBackend();
+        SegmentationBackend reference = new ReplayBackend(masksDir);
+        OmniposeBackend omnipose = null;
+        Agreement all = new Agreement();
+        long allNanos = 0;
+        int allFrames = 0;
+        System.out.println("Image\tFrames\tReference objects\tObjects\tMatched\tPrecision\tRecall\tF1\tMean IoU\tms/frame");
+        try {
+            tested.start();
+            for (String file : imageFiles) {
+                String rootName = FilenameUtils.getBaseName(file);
+                ImagePlus imgIn;
+                int nFrames;
+                ImageProcessorReader reader = new ImageProcessorReader();
+                try {
+                    reader.setId(file);
+                    FrameReader frames = new FrameReader(reader, new int[] {phase}, rootName, tools.cal, false);
+                    nFrames = Math.min(frames.getNFrames(), maxFrames);
+                    imgIn = frames.readFrames(1, nFrames)[0];
+                } finally {
+                    reader.close();
+                }
+                // Frames upscaled by the backends as in an analysis run, masks are on the segmentation grid
+                float scale = tools.segmentationScale(imgIn.getWidth());
+                ImageStack frames = imgIn.getStack();
+                int[] frameNumbers = new int[nFrames];
+                for (int t = 1; t <= nFrames; t++)
+                    frameNumbers[t-1] = t;
+
+                ImageProcessor[] referenceMasks;
+                if (new File(masksDir, rootName + ReplayBackend.MASKS_SUFFIX).exists()) {
+                    referenceMasks = reference.segment(frames, scale, rootName, frameNumbers);
+                } else {
+                    if (omnipose == null) {
+                        omnipose = new OmniposeBackend(tools.omniposeSettings(), null, 1, tools.cal);
+                        omnipose.start();
+                    }
+                    referenceMasks = omnipose.segment(frames, scale, rootName, frameNumbers);
+                    ImageStack stack = new ImageStack(referenceMasks[0].getWidth(), referenceMasks[0].getHeight());
+                    for (ImageProcessor mask : referenceMasks)
+                        stack.addSlice(mask);
+                    IJ.saveAsTiff(new ImagePlus(rootName, stack), new File(masksDir, rootName + ReplayBackend.MASKS_SUFFIX).getPath());
+                }
+
+                long start = System.nanoTime();
+                ImageProcessor[] masks = tested.segment(frames, scale, rootName, frameNumbers);
+                long nanos = System.nanoTime() - start;
+                Agreement agreement = new Agreement();
+                for (int i = 0; i < nFrames; i++)
+                    agreement.add(compare(referenceMasks[i], masks[i]));
+                System.out.println(rootName + "\t" + nFrames + "\t" + agreement + "\t" + nanos*1e-6/nFrames);
+                all.add(agreement);
+                allNanos += nanos;
+                allFrames += nFrames;
+                tools.flush_close(imgIn);
+            }
+        } finally {
+            tested.stop();
+            if (omnipose != null)
+                omnipose.stop();
+        }
+        System.out.println("All images\t" + allFrames + "\t" + all + "\t" + allNanos*1e-6/Math.max(1, allFrames));
+        return(0);
+    }
+
+
+    // Objects of two label images matched by IoU above MIN_IOU (a match is then unique)
+    public static Agreement compare(ImageProcessor reference, ImageProcessor masks) {
+        int n = reference.getPixelCount();
+        int maxRef = 0, maxMask = 0;
+        for (int p = 0; p < n; p++) {
+            maxRef = Math.max(maxRef, (int) reference.getf(p));
+            maxMask = Math.max(maxMask, (int) masks.getf(p));
+        }
+        int[] refAreas = new int[maxRef+1];
+        int[] maskAreas = new int[maxMask+1];
+        // Overlap areas of the pairs of labels, indexed by reference label << 32 | label
+        HashMap<Long, Integer> overlaps = new HashMap<>();
+        for (int p = 0; p < n; p++) {
+            int refLabel = (int) reference.getf(p);
+            int label = (int) masks.getf(p);
+            refAreas[refLabel]++;
+            maskAreas[label]++;
+            if (refLabel > 0 && label > 0)
+                overlaps.merge(((long) refLabel << 32) | label, 1, Integer::sum);
+        }
+
+        Agreement agreement = new Agreement();
+        for (int l = 1; l <= maxRef; l++)
+            if (refAreas[l] > 0)
+                agreement.nReference++;
+        for (int l = 1; l <= maxMask; l++)
+            if (maskAreas[l] > 0)
+                agreement.nObjects++;
+        for (Map.Entry<Long, Integer> overlap : overlaps.entrySet()) {
+            int refLabel = (int) (overlap.getKey() >>> 32);
+            int label = (int) (overlap.getKey() & 0xffffffffL);
+            double iou = (double) overlap.getValue() / (refAreas[refLabel] + maskAreas[label] - overlap.getValue());
+            if (iou > MIN_IOU) {
+                agreement.nMatched++;
+                agreement.sumIoU += iou;
+            }
+        }
+        return(agreement);
+    }
+
+
+    public static class Agreement {
+        int nReference, nObjects, nMatched;
+        double sumIoU;
+
+        void add(Agreement a) {
+            nReference += a.nReference;
+            nObjects += a.nObjects;
+            nMatched += a.nMatched;
+            sumIoU += a.sumIoU;
+        }
+
+        public double getPrecision() {
+            return((nObjects == 0) ? 0 : (double) nMatched / nObjects);
+        }
+
+        public double getRecall() {
+            return((nReference == 0) ? 0 : (double) nMatched / nReference);
+        }
+
+        public double getF1() {
+            return((nReference + nObjects == 0) ? 0 : 2.0*nMatched / (nReference + nObjects));
+        }
+
+        public double getMeanIoU() {
+            return((nMatched == 0) ? 0 : sumIoU / nMatched);
+        }
+
+        @Override
+        public String toString() {
+            return(nReference + "\t" + nObjects + "\t" + nMatched + "\t" + getPrecision() + "\t" + getRecall() + "\t" + getF1() + "\t" + getMeanIoU());
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package Fluo_Ratio_Bact_Bg;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.Wand;
+import java.awt.Rectangle;
+import ij.measure.Measurements;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ImageStatistics;
+
+// Shape descriptors of one object of a label image, computed on its bounding box crop
+// Same procedure as the ParticleAnalyzer (legacy wand tracing of the first particle, stats limited to the object pixels,
+// ellipse fitting) so the values are those of shape_results.xls, but without drawing each object in a full-frame image
+// Feret values come from convex hulls of boundary pixels (FeretCalculator): length between the pixel centers of all the
+// object pixels (bacterium length, as MeasureFeret of the 3D suite), Feret/MinFeret of the pixel squares of the traced
+// particle (as ImageJ on the traced outline). Like the other shape values, Feret/MinFeret only describe the first particle
+// of an object split in several parts
+// Buffers are reused from one object to the next (the mask buffer by objects of the same bounding box size)
+public class ShapeDescriptors {
+
+    private byte[] buffer = new byte[0];
+    private double[] boundaryX = new double[0], boundaryY = new double[0];
+    private final FeretCalculator feretCalculator = new FeretCalculator();
+    private double area, perimeter, length, feret, minFeret, circularity, aspectRatio, roundness;
+
+
+    // Measure object with the given label, its bounding box (inclusive) comes from LabelMeasurements
+    public void measure(ImageProcessor labels, int label, int minX, int minY, int maxX, int maxY, double pixelWidth, double pixelHeight) {
+        int w = maxX - minX + 1;
+        int h = maxY - minY + 1;
+        // ByteProcessor needs a pixel array of the exact mask size
+        if (buffer.length != w*h)
+            buffer = new byte[w*h];
+        if (boundaryX.length < 2*h) {
+            boundaryX = new double[2*h];
+            boundaryY = new double[2*h];
+        }
+
+        // Binary mask of the object in its bounding box, first object pixel in raster order is the particle analyzer start point
+        // First and last object pixels of each row are kept, their convex hull is the hull of the object
+        int startX = -1, startY = -1;
+        int nPixels = 0, nBoundary = 0;
+        for (int y = 0; y < h; y++) {
+            int first = -1, last = -1;
+            for (int x = 0; x < w; x++) {
+                boolean inside = (int) labels.getf(minX + x, minY + y) == label;
+                buffer[y*w + x] = inside ? (byte) 255 : 0;
+                if (inside) {
+                    if (first < 0)
+                        first = x;
+                    last = x;
+                    nPixels++;
+                }
+            }
+            if (first >= 0) {
+                if (startX < 0) {
+                    startX = first;
+                    startY = y;
+                }
+                boundaryX[nBoundary] = first;
+                boundaryY[nBoundary++] = y;
+                if (last != first) {
+                    boundaryX[nBoundary] = last;
+                    boundaryY[nBoundary++] = y;
+                }
+            }
+        }
+        if (startX < 0) {
+            area = perimeter = length = feret = minFeret = circularity = aspectRatio = roundness = Double.NaN;
+            return;
+        }
+        feretCalculator.compute(boundaryX, boundaryY, nBoundary);
+        length = feretCalculator.getMaxFeret()*pixelWidth;
+        ByteProcessor mask = new ByteProcessor(w, h, buffer);
+
+        // Trace outline as the particle analyzer does
+        Wand wand = new Wand(mask);
+        wand.autoOutline(startX, startY, 255, 255, Wand.LEGACY_MODE);
+        PolygonRoi roi = new PolygonRoi(wand.xpoints, wand.ypoints, wand.npoints, Roi.TRACED_ROI);
+
+        // Statistics limited to the object pixels inside the outline (interior holes excluded)
+        mask.setRoi(roi);
+        mask.setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
+        ImageStatistics stats = ImageStatistics.getStatistics(mask, Measurements.AREA+Measurements.ELLIPSE+Measurements.LIMIT, null);
+        mask.resetRoi();
+        mask.resetThreshold();
+
+        // Object split in several parts: first and last object pixels of each row inside the outline, their convex hull is
+        // the hull of the particle (otherwise the particle is the whole object and its hull is already computed)
+        if (stats.pixelCount != nPixels) {
+            ImageProcessor outline = roi.getMask();
+            Rectangle bounds = roi.getBounds();
+            nBoundary = 0;
+            for (int y = 0; y < bounds.height; y++) {
+                int first = -1, last = -1;
+                int row = (bounds.y + y)*w + bounds.x;
+                for (int x = 0; x < bounds.width; x++) {
+                    if (buffer[row + x] != 0 && outline.get(x, y) != 0) {
+                        if (first < 0)
+                            first = x;
+                        last = x;
+                    }
+                }
+                if (first >= 0) {
+                    boundaryX[nBoundary] = bounds.x + first;
+                    boundaryY[nBoundary++] = bounds.y + y;
+                    if (last != first) {
+                        boundaryX[nBoundary] = bounds.x + last;
+                        boundaryY[nBoundary++] = bounds.y + y;
+                    }
+                }
+            }
+            feretCalculator.compute(boundaryX, boundaryY, nBoundary);
+        }
+
+        // Dimensionless descriptors are computed in pixels, lengths and area are then calibrated (isotropic pixels)
+        double pixelArea = stats.pixelCount;
+        double pixelPerimeter = roi.getLength();
+        feretCalculator.computePixelCorners();
+        area = pixelArea*pixelWidth*pixelHeight;
+        perimeter = pixelPerimeter*pixelWidth;
+        feret = feretCalculator.getMaxFeret()*pixelWidth;
+        minFeret = feretCalculator.getMinFeret()*pixelWidth;
+        circularity = (pixelPerimeter == 0) ? 0 : Math.min(1, 4.0*Math.PI*(pixelArea/(pixelPerimeter*pixelPerimeter)));
+        aspectRatio = stats.major/stats.minor;
+        roundness = 4.0*pixelArea/(Math.PI*stats.major*stats.major);
+    }
+
+
+    public double getArea() {
+        return area;
+    }
+
+    public double getPerimeter() {
+        return perimeter;
+    }
+
+    // Largest distance between two pixel centers of the object, all its parts included
+    public double getLength() {
+        return length;
+    }
+
+    public double getFeret() {
+        return feret;
+    }
+
+    public double getMinFeret() {
+        return minFeret;
+    }
+
+    public double getCircularity() {
+        return circularity;
+    }
+
+    public double getAspectRatio() {
+        return aspectRatio;
+    }
+
+    public double getRoundness() {
+        return roundness;
+    }
+}
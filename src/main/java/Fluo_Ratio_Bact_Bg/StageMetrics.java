@@ -0,0 +1,197 @@
+package Fluo_Ratio_Bact_Bg;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Wall time, allocated bytes (of the measuring thread) and number of frames/bacteria of each analysis stage,
+// per stage, per image and per frame (or block of frames), written at the end of a run as a JSON report
+// and optionally as a Prometheus text-format file
+// Thread-safe, stages running on several threads add up their times
+public class StageMetrics {
+
+    public static final String REPORT_FILE = "performance_report.json";
+    public static final String PROMETHEUS_FILE = "performance_metrics.prom";
+
+    private final com.sun.management.ThreadMXBean allocations;
+    private final long runStart = System.nanoTime();
+    // Stage -> image -> totals, in first call order
+    private final LinkedHashMap<String, LinkedHashMap<String, Totals>> totals = new LinkedHashMap<>();
+    private final ArrayList<Entry> entries = new ArrayList<>();
+
+
+    public StageMetrics() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        // Allocated bytes are only available on HotSpot-like JVMs
+        if (threads instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+            allocations = (com.sun.management.ThreadMXBean) threads;
+            allocations.setThreadAllocatedMemoryEnabled(true);
+        } else {
+            allocations = null;
+        }
+    }
+
+
+    // Start measuring a stage call on the current thread
+    public Probe begin() {
+        return(new Probe(System.nanoTime(), allocatedBytes()));
+    }
+
+
+    // End of a stage call started by begin() on the same thread, frame is the first frame processed (0 for a whole image)
+    public void end(Probe probe, String stage, String image, int frame, int nFrames, int nBacteria) {
+        long nanos = System.nanoTime() - probe.nanos;
+        long bytes = (allocations == null) ? 0 : allocatedBytes() - probe.bytes;
+        synchronized (this) {
+            Totals t = totals.computeIfAbsent(stage, s -> new LinkedHashMap<>()).computeIfAbsent(image, i -> new Totals());
+            t.calls++;
+            t.nanos += nanos;
+            t.bytes += bytes;
+            t.frames += nFrames;
+            t.bacteria += nBacteria;
+            entries.add(new Entry(stage, image, frame, nFrames, nBacteria, nanos, bytes));
+        }
+    }
+
+
+    private long allocatedBytes() {
+        return((allocations == null) ? 0 : allocations.getThreadAllocatedBytes(Thread.currentThread().getId()));
+    }
+
+
+    public synchronized void writeReport(String outDir, boolean prometheus) throws IOException {
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(new File(outDir, REPORT_FILE)), StandardCharsets.UTF_8)) {
+            StringBuilder json = new StringBuilder();
+            json.append("{\n  \"wallSeconds\": ").append((System.nanoTime() - runStart)*1e-9).append(",\n");
+            json.append("  \"allocatedBytesAvailable\": ").append(allocations != null).append(",\n");
+            json.append("  \"stages\": {");
+            String sep = "\n";
+            for (Map.Entry<String, LinkedHashMap<String, Totals>> stage : totals.entrySet()) {
+                Totals all = new Totals();
+                for (Totals t : stage.getValue().values())
+                    all.add(t);
+                json.append(sep).append("    ").append(quote(stage.getKey())).append(": {");
+                all.appendJson(json);
+                json.append(", \"images\": {");
+                String imageSep = "";
+                for (Map.Entry<String, Totals> image : stage.getValue().entrySet()) {
+                    json.append(imageSep).append("\n      ").append(quote(image.getKey())).append(": {");
+                    image.getValue().appendJson(json);
+                    json.append("}");
+                    imageSep = ",";
+                }
+                json.append("\n    }}");
+                sep = ",\n";
+            }
+            json.append("\n  },\n  \"calls\": [");
+            sep = "\n";
+            for (Entry e : entries) {
+                json.append(sep).append("    {\"stage\": ").append(quote(e.stage)).append(", \"image\": ").append(quote(e.image))
+                        .append(", \"frame\": ").append(e.frame).append(", \"frames\": ").append(e.frames)
+                        .append(", \"bacteria\": ").append(e.bacteria).append(", \"seconds\": ").append(e.nanos*1e-9)
+                        .append(", \"allocatedBytes\": ").append(e.bytes).append("}");
+                sep = ",\n";
+            }
+            json.append("\n  ]\n}\n");
+            out.write(json.toString());
+        }
+        if (prometheus)
+            writePrometheus(new File(outDir, PROMETHEUS_FILE));
+    }
+
+
+    private void writePrometheus(File file) throws IOException {
+        String[][] metrics = {
+            {"seconds_total", "Wall time spent in the stage"},
+            {"allocated_bytes_total", "Bytes allocated by the stage threads"},
+            {"calls_total", "Number of calls of the stage"},
+            {"frames_total", "Number of frames processed by the stage"},
+            {"bacteria_total", "Number of bacteria processed by the stage"}};
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            StringBuilder prom = new StringBuilder();
+            for (int m = 0; m < metrics.length; m++) {
+                String name = "fluo_ratio_bact_bg_stage_" + metrics[m][0];
+                prom.append("# HELP ").append(name).append(' ').append(metrics[m][1]).append('\n');
+                prom.append("# TYPE ").append(name).append(" counter\n");
+                for (Map.Entry<String, LinkedHashMap<String, Totals>> stage : totals.entrySet())
+                    for (Map.Entry<String, Totals> image : stage.getValue().entrySet()) {
+                        if (m == 1 && allocations == null)
+                            continue;
+                        prom.append(name).append("{stage=").append(quote(stage.getKey())).append(",image=").append(quote(image.getKey()))
+                                .append("} ").append(image.getValue().value(m)).append('\n');
+                    }
+            }
+            out.write(prom.toString());
+        }
+    }
+
+
+    // JSON string, also valid as a Prometheus label value
+    private static String quote(String s) {
+        return("\"" + s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"");
+    }
+
+
+    public static class Probe {
+        final long nanos, bytes;
+
+        Probe(long nanos, long bytes) {
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+    }
+
+
+    private static class Totals {
+        long calls, nanos, bytes, frames, bacteria;
+
+        void add(Totals t) {
+            calls += t.calls;
+            nanos += t.nanos;
+            bytes += t.bytes;
+            frames += t.frames;
+            bacteria += t.bacteria;
+        }
+
+        // Prometheus metric values, in the order of writePrometheus
+        double value(int metric) {
+            switch (metric) {
+                case 0: return nanos*1e-9;
+                case 1: return bytes;
+                case 2: return calls;
+                case 3: return frames;
+                default: return bacteria;
+            }
+        }
+
+        void appendJson(StringBuilder json) {
+            json.append("\"calls\": ").append(calls).append(", \"seconds\": ").append(nanos*1e-9).append(", \"allocatedBytes\": ").append(bytes)
+                    .append(", \"frames\": ").append(frames).append(", \"bacteria\": ").append(bacteria)
+                    .append(", \"framesPerSecond\": ").append((nanos == 0) ? 0 : frames/(nanos*1e-9));
+        }
+    }
+
+
+    private static class Entry {
+        final String stage, image;
+        final int frame, frames, bacteria;
+        final long nanos, bytes;
+
+        Entry(String stage, String image, int frame, int frames, int bacteria, long nanos, long bytes) {
+            this.stage = stage;
+            this.image = image;
+            this.frame = frame;
+            this.frames = frames;
+            this.bacteria = bacteria;
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package Fluo_Ratio_Bact_Bg;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.IOException;
+import java.util.Arrays;
+
+// Segmentation of large fields of view by overlapping tiles, so that memory of a backend call is bounded by the tile size
+// whatever the frame size. Tiles of a frame all have the same size (the last ones are shifted back inside the frame),
+// all frames of a tile position go to the backend in one call, upscaling (if any) is done tile by tile
+// Tile labels are stitched into frame labels: each tile gives the labels of the pixels closer to its center than to the
+// other tiles, and objects of two tiles overlapping over at least half of the smallest one in their common zone are merged
+public class TiledBackend implements SegmentationBackend {
+
+    private final SegmentationBackend backend;
+    // Tile size and overlap on the segmentation grid (upscaled frames)
+    private final int tileSize, overlap;
+
+
+    public TiledBackend(SegmentationBackend backend, int tileSize, int overlap) {
+        if (overlap >= tileSize)
+            throw new IllegalArgumentException("Tile overlap (" + overlap + ") must be smaller than the tile size (" + tileSize + ")");
+        this.backend = backend;
+        this.tileSize = tileSize;
+        this.overlap = overlap;
+    }
+
+
+    @Override
+    public void start() throws IOException {
+        backend.start();
+    }
+
+
+    @Override
+    public void stop() {
+        backend.stop();
+    }
+
+
+    @Override
+    public String settings() {
+        return((backend.settings() == null) ? null : backend.settings() + "\ttiles " + tileSize + " " + overlap);
+    }
+
+
+    @Override
+    public ImageProcessor[] segment(ImageStack frames, String imageName, int[] frameNumbers) {
+        return(segment(frames, 1, imageName, frameNumbers));
+    }
+
+
+    @Override
+    public ImageProcessor[] segment(ImageStack frames, float scale, String imageName, int[] frameNumbers) {
+        // Tiles on the native grid, (int) scale times bigger on the segmentation grid
+        int width = frames.getWidth(), height = frames.getHeight();
+        int tile = Math.max(2, (int) (tileSize / scale)), tileOverlap = Math.min(tile - 1, (int) Math.ceil(overlap / scale));
+        int[] xs = positions(width, tile, tileOverlap), ys = positions(height, tile, tileOverlap);
+        if (xs.length == 1 && ys.length == 1)
+            return(backend.segment(frames, scale, imageName, frameNumbers));
+        int tileWidth = Math.min(tile, width), tileHeight = Math.min(tile, height);
+
+        // Tile masks, [tile][frame]
+        Tile[] tiles = new Tile[xs.length*ys.length];
+        for (int ty = 0, n = 0; ty < ys.length; ty++) {
+            for (int tx = 0; tx < xs.length; tx++, n++) {
+                ImageStack crops = new ImageStack(tileWidth, tileHeight);
+                for (int i = 1; i <= frames.getSize(); i++) {
+                    ImageProcessor ip = frames.getProcessor(i);
+                    ip.setRoi(xs[tx], ys[ty], tileWidth, tileHeight);
+                    crops.addSlice(frames.getSliceLabel(i), ip.crop());
+                    ip.resetRoi();
+                }
+                ImageProcessor[] masks = backend.segment(crops, scale, imageName, frameNumbers);
+                // Core of the tile: from the middle of its overlap with the previous tile to the middle of the one with the next tile
+                int x0 = (tx == 0) ? 0 : (xs[tx] + xs[tx-1] + tileWidth) / 2;
+                int x1 = (tx == xs.length - 1) ? width : (xs[tx+1] + xs[tx] + tileWidth) / 2;
+                int y0 = (ty == 0) ? 0 : (ys[ty] + ys[ty-1] + tileHeight) / 2;
+                int y1 = (ty == ys.length - 1) ? height : (ys[ty+1] + ys[ty] + tileHeight) / 2;
+                tiles[n] = new Tile(masks, grid(xs[tx], scale), grid(ys[ty], scale), grid(x0, scale), grid(y0, scale),
+                        grid(x1, scale), grid(y1, scale));
+            }
+        }
+
+        int segWidth = grid(width, scale), segHeight = grid(height, scale);
+        ImageProcessor[] stitched = new ImageProcessor[frames.getSize()];
+        for (int i = 0; i < stitched.length; i++) {
+            stitched[i] = stitch(tiles, i, segWidth, segHeight);
+            for (Tile t : tiles)
+                t.masks[i] = null;
+        }
+        return(stitched);
+    }
+
+
+    // Tile origins along a frame side of the given length, the last tile ends at the end of the side
+    static int[] positions(int length, int tile, int overlap) {
+        if (length <= tile)
+            return(new int[] {0});
+        int step = tile - overlap;
+        int n = (length - tile + step - 1) / step + 1;
+        int[] positions = new int[n];
+        for (int i = 0; i < n - 1; i++)
+            positions[i] = i*step;
+        positions[n-1] = length - tile;
+        return(positions);
+    }
+
+
+    // Native coordinate on the segmentation grid
+    private static int grid(int x, float scale) {
+        return((int) (x*scale));
+    }
+
+
+    // Frame i of all tiles stitched in one label image
+    static ImageProcessor stitch(Tile[] tiles, int i, int width, int height) {
+        // Labels of all tiles in a single range: tile n labels l as offsets[n] + l
+        int[] offsets = new int[tiles.length + 1];
+        for (int n = 0; n < tiles.length; n++)
+            offsets[n+1] = offsets[n] + maxLabel(tiles[n].masks[i]);
+        int[] parents = new int[offsets[tiles.length] + 1];
+        for (int l = 0; l < parents.length; l++)
+            parents[l] = l;
+
+        // Merge objects of overlapping tiles in their common zone
+        for (int a = 0; a < tiles.length; a++)
+            for (int b = a + 1; b < tiles.length; b++)
+                merge(tiles[a], offsets[a], tiles[b], offsets[b], i, parents);
+
+        // Core of each tile, labels renumbered from 1 in scan order of the tiles
+        int[] labels = new int[width*height];
+        int[] newLabels = new int[parents.length];
+        int nLabels = 0;
+        for (int n = 0; n < tiles.length; n++) {
+            Tile t = tiles[n];
+            ImageProcessor mask = t.masks[i];
+            int maskWidth = mask.getWidth();
+            int coreX1 = Math.min(t.coreX1, t.x + maskWidth), coreY1 = Math.min(t.coreY1, t.y + mask.getHeight());
+            for (int y = t.coreY0; y < coreY1; y++)
+                for (int x = t.coreX0; x < coreX1; x++) {
+                    int l = (int) mask.getf((y - t.y)*maskWidth + x - t.x);
+                    if (l <= 0)
+                        continue;
+                    int root = find(parents, offsets[n] + l);
+                    if (newLabels[root] == 0)
+                        newLabels[root] = ++nLabels;
+                    labels[y*width + x] = newLabels[root];
+                }
+        }
+        if (nLabels > 65535) {
+            float[] pixels = new float[labels.length];
+            for (int p = 0; p < labels.length; p++)
+                pixels[p] = labels[p];
+            return(new FloatProcessor(width, height, pixels));
+        }
+        short[] pixels = new short[labels.length];
+        for (int p = 0; p < labels.length; p++)
+            pixels[p] = (short) labels[p];
+        return(new ShortProcessor(width, height, pixels, null));
+    }
+
+
+    // Union of the objects of tiles a and b covering the same pixels of their common zone
+    private static void merge(Tile a, int offsetA, Tile b, int offsetB, int i, int[] parents) {
+        ImageProcessor maskA = a.masks[i], maskB = b.masks[i];
+        int x0 = Math.max(a.x, b.x), x1 = Math.min(a.x + maskA.getWidth(), b.x + maskB.getWidth());
+        int y0 = Math.max(a.y, b.y), y1 = Math.min(a.y + maskA.getHeight(), b.y + maskB.getHeight());
+        if (x0 >= x1 || y0 >= y1)
+            return;
+        int[] areaA = new int[maxLabel(maskA) + 1], areaB = new int[maxLabel(maskB) + 1];
+        // Pairs of labels of the same pixels, as label a << 32 | label b
+        long[] pairs = new long[(x1 - x0)*(y1 - y0)];
+        int nPairs = 0;
+        for (int y = y0; y < y1; y++)
+            for (int x = x0; x < x1; x++) {
+                int la = (int) maskA.getf((y - a.y)*maskA.getWidth() + x - a.x);
+                int lb = (int) maskB.getf((y - b.y)*maskB.getWidth() + x - b.x);
+                if (la > 0)
+                    areaA[la]++;
+                if (lb > 0)
+                    areaB[lb]++;
+                if (la > 0 && lb > 0)
+                    pairs[nPairs++] = ((long) la << 32) | lb;
+            }
+        Arrays.sort(pairs, 0, nPairs);
+        for (int p = 0; p < nPairs; ) {
+            int q = p;
+            while (q < nPairs && pairs[q] == pairs[p])
+                q++;
+            int la = (int) (pairs[p] >>> 32), lb = (int) pairs[p];
+            if (2*(q - p) >= Math.min(areaA[la], areaB[lb]))
+                union(parents, offsetA + la, offsetB + lb);
+            p = q;
+        }
+    }
+
+
+    private static int maxLabel(ImageProcessor mask) {
+        int max = 0;
+        int n = mask.getWidth()*mask.getHeight();
+        for (int p = 0; p < n; p++)
+            max = Math.max(max, (int) mask.getf(p));
+        return(max);
+    }
+
+
+    private static int find(int[] parents, int l) {
+        while (parents[l] != l) {
+            parents[l] = parents[parents[l]];
+            l = parents[l];
+        }
+        return(l);
+    }
+
+
+    private static void union(int[] parents, int a, int b) {
+        int ra = find(parents, a), rb = find(parents, b);
+        if (ra != rb)
+            parents[Math.max(ra, rb)] = Math.min(ra, rb);
+    }
+
+
+    // Masks of one tile position, origin and core (end excluded) on the segmentation grid
+    static class Tile {
+        final ImageProcessor[] masks;
+        final int x, y, coreX0, coreY0, coreX1, coreY1;
+
+        Tile(ImageProcessor[] masks, int x, int y, int coreX0, int coreY0, int coreX1, int coreY1) {
+            this.masks = masks;
+            this.x = x;
+            this.y = y;
+            this.coreX0 = coreX0;
+            this.coreY0 = coreY0;
+            this.coreX1 = coreX1;
+            this.coreY1 = coreY1;
+        }
+    }
+}
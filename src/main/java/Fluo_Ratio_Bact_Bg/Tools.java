@@ -1,26 +1,22 @@
 package Fluo_Ratio_Bact_Bg;
 import Fluo_Ratio_Bact_Bg_Tools.CellposeTaskSettings;
-import Fluo_Ratio_Bact_Bg_Tools.CellposeSegmentImgPlusAdvanced;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.io.FileSaver;
 import ij.measure.Calibration;
-import ij.plugin.Duplicator;
 import ij.gui.Roi;
 import fiji.util.gui.GenericDialogPlus;
-import ij.measure.ResultsTable;
-import ij.plugin.RGBStackMerge;
-import ij.plugin.filter.ParticleAnalyzer;
 import ij.process.ImageProcessor;
 import java.awt.Color;
 import java.awt.Font;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
 import loci.formats.FormatException;
@@ -29,13 +25,9 @@ import loci.plugins.util.ImageProcessorReader;
 import mcib3d.geom2.Object3DInt;
 import mcib3d.geom2.Objects3DIntPopulation;
 import mcib3d.geom2.Objects3DIntPopulationComputation;
-import mcib3d.geom2.VoxelInt;
-import mcib3d.geom2.measurements.MeasureFeret;
-import mcib3d.geom2.measurements.MeasureIntensity;
-import mcib3d.geom2.measurements.MeasureVolume;
 import mcib3d.image3d.ImageHandler;
+import mcib3d.image3d.ImageShort;
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.output.NullPrintStream;
 
 public class Tools {
 
@@ -52,6 +44,40 @@ public class Tools {
     private int omniposeMaskThreshold = 0;
     private double omniposeFlowThreshold = 0.4;
     private boolean useGpu = true;
+    // Segmentation backend: omnipose, classical (pure Java, high-contrast images) or replay of the masks of replayMasksDirPath
+    private String segmentationMethod = "omnipose";
+    private String replayMasksDirPath = "";
+    // Classical segmentation: smoothing (pixels) and depth of the distance map between two touching bacteria (pixels)
+    private double classicalSigma = 1;
+    private double classicalSeedDepth = 1;
+    private SegmentationBackend segmentation = null;
+    // Tiled segmentation of large frames: tile size (pixels of the segmentation grid, 0 for whole frames) and tile overlap
+    private int tileSize = 0;
+    private int tileOverlap = 64;
+    // Sampling of labels of upscaled frames on the native frames: area (weighted by covered part) or nearest (whole pixels)
+    private String labelSampling = "area";
+    // Background: step (pixels) between the 100-pixel tiles searched for the lowest background, 100 for non-overlapping tiles
+    public int backgroundStride = 50;
+    // Number of images analyzed at the same time
+    public int parallelImages = 1;
+    // Binary columnar results tables instead of tab-separated text
+    public boolean binaryResults = false;
+    // Stage metrics also in Prometheus text format
+    public boolean prometheusMetrics = false;
+    // Overlays: stack (labels + phase, one compressed file per image), labels (label planes only) or frames (one TIFF per frame)
+    public String overlayFormat = "stack";
+    // Omnipose masks kept on disk, indexed by phase plane and settings
+    private boolean useMaskCache = true;
+    private String maskCacheDirPath = System.getProperty("user.home")+File.separator+".cellpose"+File.separator+"mask_cache";
+    private double maskCacheSizeGB = 2;
+    private MaskCache maskCache = null;
+    // Number of frames segmented in one Omnipose call (bounds the number of frames kept in memory)
+    public int omniposeBatchSize = 20;
+    // Max distance (µm) between the centroids of a bacterium in two consecutive frames, for bacteria that do not overlap
+    public double trackMaxDistance = 2;
+    // An Omnipose call not done within omniposeTimeout seconds is killed, failed calls are run up to omniposeAttempts times
+    private int omniposeTimeout = 1800;
+    private int omniposeAttempts = 3;
      
     private double minBactSurface = 1;
     private double maxBactSurface = 10;
@@ -217,9 +243,24 @@ public class Tools {
         }
         gd.addDirectoryField("Omnipose environment directory: ", omniposeEnvDirPath);
         gd.addDirectoryField("Omnipose models path: ", omniposeModelsPath); 
+        String[] methods = {"Omnipose", "Classical (high-contrast images)"};
+        gd.addChoice("Segmentation: ", methods, methods[segmentationMethod.equals("classical") ? 1 : 0]);
         gd.addMessage("Object size threshold ", Font.getFont("Monospace"), Color.blue);
         gd.addNumericField("Min bacterium surface (µm2): ", minBactSurface);
         gd.addNumericField("Max bacterium surface (µm2): ", maxBactSurface);
+        gd.addNumericField("Max bacterium move between frames (µm): ", trackMaxDistance);
+        gd.addNumericField("Background search step (pixels, 1 to 100): ", backgroundStride);
+        gd.addMessage("Performance", Font.getFont("Monospace"), Color.blue);
+        gd.addNumericField("Images analyzed in parallel: ", parallelImages);
+        gd.addNumericField("Segmentation tile size (pixels, 0 for whole frames): ", tileSize);
+        gd.addCheckbox("Reuse Omnipose masks of previous runs", useMaskCache);
+        gd.addNumericField("Masks cache size (GB): ", maskCacheSizeGB);
+        String[] formats = {"Tab-separated text (.xls)", "Binary columnar (.bin)"};
+        gd.addChoice("Results format: ", formats, formats[binaryResults ? 1 : 0]);
+        gd.addCheckbox("Write Prometheus metrics", prometheusMetrics);
+        String[] overlays = {"One compressed stack per image", "Label planes only (compressed stack)", "One TIFF per frame"};
+        String[] overlayFormats = {"stack", "labels", "frames"};
+        gd.addChoice("Overlays: ", overlays, overlays[Math.max(0, Arrays.asList(overlayFormats).indexOf(overlayFormat))]);
         gd.addMessage("Image calibration", Font.getFont("Monospace"), Color.blue);
         gd.addNumericField("XY calibration (µm):", cal.pixelWidth);
         gd.showDialog();
@@ -232,8 +273,18 @@ public class Tools {
 
         omniposeEnvDirPath = gd.getNextString();
         omniposeModelsPath = gd.getNextString();
+        segmentationMethod = (gd.getNextChoiceIndex() == 1) ? "classical" : "omnipose";
         minBactSurface = (float) gd.getNextNumber();
         maxBactSurface = (float) gd.getNextNumber();        
+        trackMaxDistance = gd.getNextNumber();
+        backgroundStride = Math.min(100, Math.max(1, (int) gd.getNextNumber()));
+        parallelImages = Math.max(1, (int) gd.getNextNumber());
+        tileSize = Math.max(0, (int) gd.getNextNumber());
+        useMaskCache = gd.getNextBoolean();
+        maskCacheSizeGB = gd.getNextNumber();
+        binaryResults = gd.getNextChoiceIndex() == 1;
+        prometheusMetrics = gd.getNextBoolean();
+        overlayFormat = overlayFormats[gd.getNextChoiceIndex()];
         cal.pixelWidth = cal.pixelHeight = gd.getNextNumber();
         cal.pixelDepth = 1;
         pixelSurf = cal.pixelWidth*cal.pixelWidth;
@@ -242,20 +293,66 @@ public class Tools {
     }
     
    
+    // Settings of a headless run, same as the dialog ones (channels are chosen by the caller), missing keys keep their value
+    public void setSettings(Properties props) {
+        omniposeEnvDirPath = props.getProperty("omniposeEnvDir", omniposeEnvDirPath);
+        omniposeModelsPath = props.getProperty("omniposeModelsPath", omniposeModelsPath);
+        omniposeModel = props.getProperty("omniposeModel", omniposeModel);
+        omniposeDiameter = Integer.parseInt(props.getProperty("omniposeDiameter", "" + omniposeDiameter));
+        useGpu = Boolean.parseBoolean(props.getProperty("useGpu", "" + useGpu));
+        minBactSurface = Double.parseDouble(props.getProperty("minBactSurface", "" + minBactSurface));
+        maxBactSurface = Double.parseDouble(props.getProperty("maxBactSurface", "" + maxBactSurface));
+        parallelImages = Math.max(1, Integer.parseInt(props.getProperty("parallelImages", "" + parallelImages)));
+        omniposeBatchSize = Math.max(1, Integer.parseInt(props.getProperty("omniposeBatchSize", "" + omniposeBatchSize)));
+        omniposeTimeout = Integer.parseInt(props.getProperty("omniposeTimeout", "" + omniposeTimeout));
+        omniposeAttempts = Math.max(1, Integer.parseInt(props.getProperty("omniposeAttempts", "" + omniposeAttempts)));
+        useMaskCache = Boolean.parseBoolean(props.getProperty("maskCache", "" + useMaskCache));
+        maskCacheDirPath = props.getProperty("maskCacheDir", maskCacheDirPath);
+        maskCacheSizeGB = Double.parseDouble(props.getProperty("maskCacheSizeGB", "" + maskCacheSizeGB));
+        binaryResults = props.getProperty("resultsFormat", binaryResults ? "binary" : "text").equals("binary");
+        prometheusMetrics = Boolean.parseBoolean(props.getProperty("prometheusMetrics", "" + prometheusMetrics));
+        overlayFormat = props.getProperty("overlays", overlayFormat);
+        trackMaxDistance = Double.parseDouble(props.getProperty("trackMaxDistance", "" + trackMaxDistance));
+        backgroundStride = Integer.parseInt(props.getProperty("backgroundStride", "" + backgroundStride));
+        if (backgroundStride < 1 || backgroundStride > 100)
+            throw new IllegalArgumentException("backgroundStride must be between 1 and 100");
+        if (!Arrays.asList("stack", "labels", "frames").contains(overlayFormat))
+            throw new IllegalArgumentException("Unknown overlays " + overlayFormat + ", must be stack, labels or frames");
+        segmentationMethod = props.getProperty("segmentation", segmentationMethod);
+        replayMasksDirPath = props.getProperty("replayMasksDir", replayMasksDirPath);
+        classicalSigma = Double.parseDouble(props.getProperty("classicalSigma", "" + classicalSigma));
+        classicalSeedDepth = Double.parseDouble(props.getProperty("classicalSeedDepth", "" + classicalSeedDepth));
+        tileSize = Integer.parseInt(props.getProperty("tileSize", "" + tileSize));
+        tileOverlap = Integer.parseInt(props.getProperty("tileOverlap", "" + tileOverlap));
+        labelSampling = props.getProperty("labelSampling", labelSampling);
+        if (!labelSampling.equals("area") && !labelSampling.equals("nearest"))
+            throw new IllegalArgumentException("Unknown labelSampling " + labelSampling + ", must be area or nearest");
+        if (!segmentationMethod.equals("omnipose") && !segmentationMethod.equals("classical") && !segmentationMethod.equals("replay"))
+            throw new IllegalArgumentException("Unknown segmentation " + segmentationMethod + ", must be omnipose, classical or replay");
+        if (props.getProperty("pixelSize") != null)
+            cal.pixelWidth = cal.pixelHeight = Double.parseDouble(props.getProperty("pixelSize"));
+        cal.pixelDepth = 1;
+        pixelSurf = cal.pixelWidth*cal.pixelWidth;
+    }
+    
+    
+    // Settings the results depend on, a run can only be resumed with the same settings
+    public String analysisSettings(String[] chs) {
+        return(String.join(" ", chs) + "\t" + omniposeModel + "\t" + omniposeDiameter + "\t" + omniposeMaskThreshold + "\t" +
+                omniposeFlowThreshold + "\t" + minBactSurface + "\t" + maxBactSurface + "\t" + cal.pixelWidth + "\ttrack " + trackMaxDistance +
+                "\tbg stride " + backgroundStride +
+                (segmentationMethod.equals("replay") ? "\treplay " + replayMasksDirPath : "") +
+                (segmentationMethod.equals("classical") ? "\tclassical " + classicalSigma + " " + classicalSeedDepth : "") +
+                (tiled() ? "\ttiles " + tileSize + " " + tileOverlap : "") + "\t" + labelSampling);
+    }
+    
+    
     public Objects3DIntPopulation omniposeDetection(ImagePlus imgBact){
-        // Resize to be in a Omnipose-friendly scale
-        ImagePlus imgIn = null;
-        boolean resize = false;
-        if (imgBact.getWidth() < 500) {
-            float factor = 2f;
-            imgIn = imgBact.resize((int)(imgBact.getWidth()*factor), (int)(imgBact.getHeight()*factor), 1, "bicubic");
-            resize = true;
-        } else {
-            imgIn = new Duplicator().run(imgBact);
-        }
-        imgIn.setCalibration(cal);
-        
-        // Set Omnipose settings
+        return(detectBacteriaFrames(imgBact, imgBact.getTitle(), 1).get(0));
+    }
+    
+    
+    public CellposeTaskSettings omniposeSettings() {
         CellposeTaskSettings settings = new CellposeTaskSettings(omniposeModelsPath+omniposeModel, 1, omniposeDiameter, omniposeEnvDirPath);
         settings.setVersion("0.7");
         settings.setCluster(true);
@@ -264,102 +361,238 @@ public class Tools {
         settings.setCellProbTh(omniposeMaskThreshold);
         settings.setFlowTh(omniposeFlowThreshold);
         settings.useGpu(useGpu);
+        settings.setTimeout(omniposeTimeout*1000L);
+        settings.setRetries(omniposeAttempts, 5000);
         
-        // Run Omnipose
-        CellposeSegmentImgPlusAdvanced cellpose = new CellposeSegmentImgPlusAdvanced(settings, imgIn);
-        PrintStream console = System.out;
-        System.setOut(new NullPrintStream());
-        ImagePlus imgOut = cellpose.run();
-        System.setOut(console);
-        imgOut.setCalibration(cal);
+        return(settings);
+    }
+    
+    
+    public SegmentationBackend segmentationBackend() {
+        if (segmentationMethod.equals("replay"))
+            return(new ReplayBackend(new File(replayMasksDirPath)));
+        SegmentationBackend backend;
+        if (segmentationMethod.equals("classical"))
+            backend = new ClassicalBackend(new ClassicalSegmenter(classicalSigma, classicalSeedDepth, ForkJoinPool.commonPool()));
+        else
+            // One Omnipose process per image analyzed in parallel
+            backend = new OmniposeBackend(omniposeSettings(), omniposeCacheSettings(), parallelImages, cal);
+        return(tiled() ? new TiledBackend(backend, tileSize, tileOverlap) : backend);
+    }
+    
+    
+    // Replayed masks are whole frames, they are never tiled
+    private boolean tiled() {
+        return(tileSize > 0 && !segmentationMethod.equals("replay"));
+    }
+    
+    
+    // Start the segmentation backend, Omnipose models are then loaded once for the whole plugin run
+    public void startSegmentation() throws IOException {
+        segmentation = segmentationBackend();
+        segmentation.start();
+    }
+    
+    
+    public void stopSegmentation() {
+        if (segmentation != null)
+            segmentation.stop();
+        segmentation = null;
+    }
+    
+    
+    // Segment all the frames of a time-lapse in a single backend call (Omnipose model is loaded a single time instead of once per frame)
+    // Frames of imgBact are the frames firstFrame, firstFrame+1... of the image imageName
+    // Frames already segmented with the same settings are read from the mask cache and not segmented again
+    // Returns one population of bacteria per frame
+    public ArrayList<Objects3DIntPopulation> detectBacteriaFrames(ImagePlus imgBact, String imageName, int firstFrame){
+        // Without a started backend a new one is used (Omnipose then runs in its own Python process)
+        SegmentationBackend backend = (segmentation != null) ? segmentation : segmentationBackend();
+        // Resize to be in a Omnipose-friendly scale
+        float factor = segmentationScale(imgBact.getWidth());
+        ImageStack stack = imgBact.getStack();
+        int nFrames = stack.getSize();
         
-        Objects3DIntPopulation pop = new Objects3DIntPopulation(ImageHandler.wrap(imgOut));
-        pop = new Objects3DIntPopulationComputation(pop).getExcludeBorders(ImageHandler.wrap(imgOut), false);
-        pop = new Objects3DIntPopulationComputation(pop).getFilterSize(minBactSurface/pixelSurf, maxBactSurface/pixelSurf);
-        pop.resetLabels();
+        // Look for cached masks
+        ImageProcessor[] masks = new ImageProcessor[nFrames];
+        String[] keys = new String[nFrames];
+        MaskCache cache = (backend.settings() != null) ? maskCache : null;
+        if (cache != null) {
+            String settingsKey = backend.settings() + "\t" + factor;
+            for (int t = 1; t <= nFrames; t++) {
+                keys[t-1] = MaskCache.key(stack.getProcessor(t), settingsKey);
+                masks[t-1] = cache.get(keys[t-1]);
+            }
+        }
+        ImageStack stackIn = new ImageStack(imgBact.getWidth(), imgBact.getHeight());
+        int[] frameNumbers = new int[nFrames];
+        for (int t = 1; t <= nFrames; t++)
+            if (masks[t-1] == null) {
+                stackIn.addSlice(stack.getSliceLabel(t), stack.getProcessor(t));
+                frameNumbers[stackIn.getSize()-1] = firstFrame + t - 1;
+            }
         
-        // Close images
-        flush_close(imgIn);
-        flush_close(imgOut);
+        if (stackIn.getSize() > 0) {
+            // Frames are upscaled by the backend, tile by tile in tiled segmentation
+            ImageProcessor[] segmented = backend.segment(stackIn, factor, imageName, Arrays.copyOf(frameNumbers, stackIn.getSize()));
+            
+            // One mask per segmented frame
+            for (int t = 1, i = 0; t <= nFrames; t++) {
+                if (masks[t-1] != null)
+                    continue;
+                masks[t-1] = segmented[i++];
+                if (cache != null)
+                    cache.put(keys[t-1], masks[t-1]);
+            }
+        }
         
+        ArrayList<Objects3DIntPopulation> pops = new ArrayList<>();
+        for (int t = 1; t <= nFrames; t++) {
+            ImagePlus imgMask = new ImagePlus(imgBact.getTitle(), masks[t-1]);
+            imgMask.setCalibration(cal);
+            pops.add(filterBacteria(imgMask, factor));
+            flush_close(imgMask);
+        }
+        return(pops);
+    }
+    
+    
+    // Everything Omnipose masks depend on besides the phase plane and the resize factor
+    private String omniposeCacheSettings() {
+        File model = new File(omniposeModelsPath+omniposeModel);
+        return(omniposeModel + "\t" + model.length() + "\t" + model.lastModified() + "\t" + omniposeDiameter + "\t" +
+                omniposeMaskThreshold + "\t" + omniposeFlowThreshold + "\t" + useGpu + "\tomni cluster 0.7");
+    }
+    
+    
+    public void openMaskCache() throws IOException {
+        maskCache = useMaskCache ? new MaskCache(new File(maskCacheDirPath), (long) (maskCacheSizeGB*1e9)) : null;
+    }
+    
+    
+    // Frames narrower than 500 pixels are segmented upscaled 2x, their bacteria then live on the 2x grid
+    public float segmentationScale(int width) {
+        return((width < 500) ? 2f : 1f);
+    }
+    
+    
+    // Grid of the labels of a frame segmented at the given scale
+    public LabelGrid labelGrid(ImagePlus img, float scale) {
+        int width = img.getWidth(), height = img.getHeight();
+        return(new LabelGrid((int) (width*scale), (int) (height*scale), width, height, labelSampling.equals("area")));
+    }
+    
+    
+    // Get bacteria population from a label mask (frames upscaled by scale), excluding objects touching borders and filtering them by size
+    private Objects3DIntPopulation filterBacteria(ImagePlus imgMask, float scale) {
+        Objects3DIntPopulation pop = new Objects3DIntPopulation(ImageHandler.wrap(imgMask));
+        pop = new Objects3DIntPopulationComputation(pop).getExcludeBorders(ImageHandler.wrap(imgMask), false);
+        double scaleSurf = scale*scale;
+        pop = new Objects3DIntPopulationComputation(pop).getFilterSize(minBactSurface/pixelSurf*scaleSurf, maxBactSurface/pixelSurf*scaleSurf);
+        pop.resetLabels();
         return(pop);
     }
    
   
     public double findBackground(ImagePlus img, Roi roi, String method) {
-      ImagePlus imgProj =  new Duplicator().run(img);
       ImageProcessor imp = img.getProcessor();
       imp.setRoi(roi);
 
       double bg = (method.equals("median")) ? imp.getStatistics().median : imp.getStatistics().mean;
-      flush_close(imgProj);
+      imp.resetRoi();
       return(bg);
     }
     
 
     public double findRoiBackgroundAuto(ImagePlus img, int roiBgSize, String method) {
-        // Scroll image and measure median intensity in roi
+        return findRoiBackgroundAuto(img, roiBgSize, roiBgSize, method);
+    }
+    
+    
+    public double findRoiBackgroundAuto(ImagePlus img, int roiBgSize, int roiBgStride, String method) {
+        // Scroll image with the given stride and measure median intensity in each roi (moving histograms, rows of rois in parallel)
         // Take roi with the lowest intensity as the output background estimate
-        ArrayList<RoiBg> intBgFound = new ArrayList<>();
-        for (int x = 0; x < img.getWidth() - roiBgSize; x += roiBgSize) {
-            for (int y = 0; y < img.getHeight() - roiBgSize; y += roiBgSize) {
-                Roi roi = new Roi(x, y, roiBgSize, roiBgSize);
-                double bg = findBackground(img, roi, method);
-                intBgFound.add(new RoiBg(roi, bg));
-            }
-        }
-        img.deleteRoi();
-        
-        // Sort RoiBg on bg value ascending order
-        intBgFound.sort(Comparator.comparing(RoiBg::getBgInt));
-        // Return min value
-        RoiBg roiBg = intBgFound.get(0);
-        return roiBg.getBgInt();
+        BackgroundMap bgMap = new BackgroundEstimator(roiBgSize, roiBgStride, method, ForkJoinPool.commonPool()).computeMap(img.getProcessor());
+        // Image smaller than a roi, use the whole image
+        if (bgMap == null)
+            return(findBackground(img, null, method));
+        return bgMap.getMinRoiBg().getBgInt();
     }
     
     
    
-    public void saveResults(Objects3DIntPopulation bactPop, ImagePlus phaseImg, ImagePlus fluoImg, double background, String imgName, BufferedWriter fluoFile, BufferedWriter shapeFile, int frameNumber) throws IOException {
+    // Draw the population in a label image with the dimensions of img, each object with its label
+    public ImageHandler drawLabels(Objects3DIntPopulation pop, ImagePlus img) {
+        ImageHandler imhLabels = ImageHandler.wrap(img).createSameDimensions();
+        pop.drawInImage(imhLabels);
+        return(imhLabels);
+    }
+    
+    
+    // Measure bacteria of a frame and return the values of the fluo and shape results tables
+    // Does not touch the results files, so frames can be measured in parallel
+    public FrameResults measureResults(Objects3DIntPopulation bactPop, ImagePlus phaseImg, ImagePlus fluoImg, double background, String imgName, int frameNumber) {
+        return(measureResults(bactPop, 1, phaseImg, fluoImg, background, imgName, frameNumber));
+    }
+    
+    
+    // Same for bacteria segmented on frames upscaled by scale: labels are mapped on the fly to the native fluo plane (LabelGrid),
+    // surfaces and intensities are measured at native resolution, shapes on the finer label grid
+    public FrameResults measureResults(Objects3DIntPopulation bactPop, float scale, ImagePlus phaseImg, ImagePlus fluoImg, double background, String imgName, int frameNumber) {
+        // Measure all bacteria in a single scan of the label image and the fluo plane
+        int maxLabel = 0;
+        for (Object3DInt bact : bactPop.getObjects3DInt())
+            maxLabel = Math.max(maxLabel, (int) bact.getLabel());
+        LabelGrid grid = labelGrid(phaseImg, scale);
+        ImageHandler imhLabels = grid.isIdentity() ? drawLabels(bactPop, phaseImg) : new ImageShort("labels", grid.gridWidth, grid.gridHeight, 1);
+        if (!grid.isIdentity())
+            bactPop.drawInImage(imhLabels);
+        ImageProcessor labels = imhLabels.getImagePlus().getProcessor();
+        LabelMeasurements measures = LabelMeasurements.measure(labels, fluoImg.getProcessor(), maxLabel, grid);
+        double voxelVolume = cal.pixelWidth*cal.pixelHeight*cal.pixelDepth;
+        Calibration phaseCal = phaseImg.getCalibration();
+        ShapeDescriptors shape = new ShapeDescriptors();
+        FrameResults results = new FrameResults(imgName, frameNumber, background, bactPop.getNbObjects());
+        
         for (Object3DInt bact : bactPop.getObjects3DInt()) {
             float bactLabel = bact.getLabel();
-            double bactSurf = new MeasureVolume(bact).getValueMeasurement(MeasureVolume.VOLUME_UNIT);
-            VoxelInt feret1Unit = new MeasureFeret(bact).getFeret1Unit();
-            VoxelInt feret2Unit = new MeasureFeret(bact).getFeret2Unit();
-            double bactLength = feret1Unit.distance(feret2Unit)*cal.pixelWidth;
+            int label = (int) bactLabel;
+            double bactSurf = measures.getArea(label)*voxelVolume;
             
-            // Fluo descriptors
-            double fluoIntensity = new MeasureIntensity(bact, ImageHandler.wrap(fluoImg)).getValueMeasurement(MeasureIntensity.INTENSITY_AVG);
-            fluoFile.write(imgName+"\t"+frameNumber+"\t"+bactLabel+"\t"+bactSurf+"\t"+bactLength+"\t"+fluoIntensity+"\t"+background+"\t"+fluoIntensity/background+"\n");
-        
             // Bacteria shape descriptors
-            ImageHandler imh = ImageHandler.wrap(phaseImg).createSameDimensions();
-            // Draw each object independently (and not all the population of objects once) to avoid binary thresholding of cell aggregates to results in merging several cells and biasing the shape results
-            bact.drawObject(imh);
-            ResultsTable resultsTable = new ResultsTable();
-            ParticleAnalyzer particleAnalyzer = new ParticleAnalyzer(ParticleAnalyzer.CLEAR_WORKSHEET, ParticleAnalyzer.SHAPE_DESCRIPTORS+ParticleAnalyzer.LIMIT
-                    +ParticleAnalyzer.AREA+ParticleAnalyzer.FERET, resultsTable, 0, Double.MAX_VALUE);
-            IJ.setThreshold(imh.getImagePlus(), 1, Double.MAX_VALUE);
-            particleAnalyzer.analyze(imh.getImagePlus());
-            double area = resultsTable.getValue("Area", 0);
-            double feret = resultsTable.getValue("Feret", 0);
-            double minFeret = resultsTable.getValue("MinFeret", 0);
-            double cir = resultsTable.getValue("Circ.", 0);
-            double ar = resultsTable.getValue("AR", 0);
-            double round = resultsTable.getValue("Round", 0);
-             shapeFile.write(imgName+"\t"+frameNumber+"\t"+bactLabel+"\t"+area+"\t"+feret+"\t"+minFeret+
-                     "\t"+cir+"\t"+ar+"\t"+round+"\n");
+            // Each object is measured alone on its bounding box crop, so that touching cells are not merged
+            shape.measure(labels, label, measures.getMinX(label), measures.getMinY(label), measures.getMaxX(label), measures.getMaxY(label),
+                    phaseCal.pixelWidth/grid.getScaleX(), phaseCal.pixelHeight/grid.getScaleY());
+            double bactLength = shape.getLength();
+            
+            // Fluo descriptors
+            double fluoIntensity = measures.getIntensityMean(label);
+            results.add(bactLabel, grid.toNativeX(measures.getCentroidX(label)), grid.toNativeY(measures.getCentroidY(label)), bactSurf, bactLength, fluoIntensity,
+                    shape.getArea(), shape.getFeret(), shape.getMinFeret(), shape.getCircularity(), shape.getAspectRatio(), shape.getRoundness());
         }
-        fluoFile.flush();
-        shapeFile.flush();
+        // The processor keeps its pixels once the image is closed
+        results.labelPlane = labels;
+        flush_close(imhLabels.getImagePlus());
+        return(results);
     }
     
 
     public void drawResults(ImagePlus imgBact, ImagePlus imgGene, Objects3DIntPopulation bactPop, String imgName, String outDir, int frameNumber) {
-        ImageHandler imhBact = ImageHandler.wrap(imgBact).createSameDimensions();
-        bactPop.drawInImage(imhBact);
-        IJ.run(imhBact.getImagePlus(), "glasbey on dark", "");
-        ImagePlus[] imgColors = {imhBact.getImagePlus(), imgBact};
-        ImagePlus imgOut = new RGBStackMerge().mergeHyperstacks(imgColors, false);
+        drawResults(imgBact, imgGene, bactPop, 1, imgName, outDir, frameNumber);
+    }
+    
+    
+    // Same for bacteria segmented on frames upscaled by scale, drawn on the native grid
+    public void drawResults(ImagePlus imgBact, ImagePlus imgGene, Objects3DIntPopulation bactPop, float scale, String imgName, String outDir, int frameNumber) {
+        ImagePlus imgLabels;
+        if (scale == 1) {
+            ImageHandler imhBact = ImageHandler.wrap(imgBact).createSameDimensions();
+            bactPop.drawInImage(imhBact);
+            imgLabels = imhBact.getImagePlus();
+        } else {
+            imgLabels = new ImagePlus(imgBact.getTitle(), labelGrid(imgBact, scale).drawNative(bactPop));
+        }
+        ImagePlus imgOut = OverlaySink.composite(imgLabels, imgBact);
         imgOut.setCalibration(cal);
         FileSaver ImgObjectsFile = new FileSaver(imgOut);
         ImgObjectsFile.saveAsTiff(imgName + "_frame" + frameNumber + "_bacteria.tif");      
@@ -0,0 +1,91 @@
+package Fluo_Ratio_Bact_Bg;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+
+// Tab-separated results tables (fluo_results.xls and shape_results.xls)
+// Rows are formatted in reused StringBuilders (numbers are appended without intermediate Strings) and written to the
+// files when the buffered rows exceed maxBufferChars or every maxDelayMs, instead of a flush per frame
+public class TsvResultsSink implements ResultsSink {
+
+    public static final String FLUO_FILE = "fluo_results.xls";
+    public static final String SHAPE_FILE = "shape_results.xls";
+    public static final String FLUO_HEADER = "Image name\tFrame number\t Bacterium ID\tTrack ID\tBacterium surface (µm2)\tBacterium length (µm)\tBacterium intensity"
+                    +"\tBackground intensity \tBacterium intensity / Background intensity\n";
+    public static final String SHAPE_HEADER = "Image name\tFrame number\tBact ID\tTrack ID\t Bacterium area\tBacterium feret\t"
+                    + "Bacterium feret min\tBacterium cicularity\t"
+                    + "Bacterium aspect ratio\t"+ "Bacterium roundness\n";
+
+    private final Writer fluoFile, shapeFile;
+    private final StringBuilder fluoRows = new StringBuilder(1 << 16);
+    private final StringBuilder shapeRows = new StringBuilder(1 << 16);
+    private char[] chars = new char[1 << 16];
+    private int maxBufferChars = 1 << 20;
+    private long maxDelayMs = 5000;
+    private long lastFlush = System.currentTimeMillis();
+
+
+    public TsvResultsSink(Writer fluoFile, Writer shapeFile) {
+        this.fluoFile = fluoFile;
+        this.shapeFile = shapeFile;
+    }
+
+
+    public TsvResultsSink(OutputStream fluoFile, OutputStream shapeFile) {
+        this(new OutputStreamWriter(fluoFile), new OutputStreamWriter(shapeFile));
+    }
+
+
+    public TsvResultsSink setFlushPolicy(int maxBufferChars, long maxDelayMs) {
+        this.maxBufferChars = maxBufferChars;
+        this.maxDelayMs = maxDelayMs;
+        return this;
+    }
+
+
+    static LinkedHashMap<String, byte[]> files() {
+        LinkedHashMap<String, byte[]> files = new LinkedHashMap<>();
+        files.put(FLUO_FILE, FLUO_HEADER.getBytes());
+        files.put(SHAPE_FILE, SHAPE_HEADER.getBytes());
+        return(files);
+    }
+
+
+    @Override
+    public boolean write(FrameResults frame) throws IOException {
+        for (int i = 0; i < frame.size(); i++) {
+            fluoRows.append(frame.imageName).append('\t').append(frame.frame).append('\t').append(frame.getLabel(i)).append('\t')
+                    .append(frame.getTrackId(i)).append('\t').append(frame.getSurface(i)).append('\t').append(frame.getLength(i)).append('\t').append(frame.getIntensity(i)).append('\t')
+                    .append(frame.background).append('\t').append(frame.getRatio(i)).append('\n');
+            shapeRows.append(frame.imageName).append('\t').append(frame.frame).append('\t').append(frame.getLabel(i)).append('\t')
+                    .append(frame.getTrackId(i)).append('\t').append(frame.getArea(i)).append('\t').append(frame.getFeret(i)).append('\t').append(frame.getMinFeret(i)).append('\t')
+                    .append(frame.getCircularity(i)).append('\t').append(frame.getAspectRatio(i)).append('\t').append(frame.getRoundness(i)).append('\n');
+        }
+        if (fluoRows.length() + shapeRows.length() < maxBufferChars && System.currentTimeMillis() - lastFlush < maxDelayMs)
+            return(false);
+        flush();
+        return(true);
+    }
+
+
+    @Override
+    public void flush() throws IOException {
+        write(fluoRows, fluoFile);
+        write(shapeRows, shapeFile);
+        lastFlush = System.currentTimeMillis();
+    }
+
+
+    // Copy rows through a reused char buffer (Writer.append would first turn the builder into a String)
+    private void write(StringBuilder rows, Writer file) throws IOException {
+        int n = rows.length();
+        if (chars.length < n)
+            chars = new char[Math.max(n, 2*chars.length)];
+        rows.getChars(0, n, chars, 0);
+        file.write(chars, 0, n);
+        file.flush();
+        rows.setLength(0);
+    }
+}
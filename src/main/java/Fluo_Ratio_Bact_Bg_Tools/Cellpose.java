@@ -1,14 +1,9 @@
 package Fluo_Ratio_Bact_Bg_Tools;
 
 import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import static java.io.File.separatorChar;
 
@@ -18,7 +13,8 @@ import Fluo_Ratio_Bact_Bg_Tools.CellposeTaskSettings;
 
 public class Cellpose {
 
-    static void execute(List<String> options, CellposeTaskSettings settings, Consumer<InputStream> outputHandler) throws IOException, InterruptedException {
+    // Build the command line running the python of the Cellpose environment with the given arguments
+    static List<String> pythonCommand(List<String> args, CellposeTaskSettings settings) {
         List<String> cmd = new ArrayList<>();
         List<String> start_cmd = null ;
 
@@ -41,15 +37,15 @@ public class Cellpose {
                 cmd.addAll(conda_activate_cmd);
                 // After starting the env we can now use cellpose
                 cmd.add("&");// to have a second command
-                List<String> cellpose_args_cmd = Arrays.asList("python", "-Xutf8", "-m", "cellpose");
+                List<String> cellpose_args_cmd = Arrays.asList("python", "-Xutf8");
                 cmd.addAll(cellpose_args_cmd);
                 // input options
-                cmd.addAll(options);
+                cmd.addAll(args);
             } else if (IJ.isMacOSX() || IJ.isLinux()) {
                 // instead of conda activate (so much headache!!!) specify the python to use
                 String python_path = settings.cellposeEnvDirectory+separatorChar+"bin"+separatorChar+"python";
-                List<String> cellpose_args_cmd = new ArrayList<>(Arrays.asList( python_path , "-m","cellpose"));
-                cellpose_args_cmd.addAll(options);
+                List<String> cellpose_args_cmd = new ArrayList<>(Arrays.asList(python_path));
+                cellpose_args_cmd.addAll(args);
 
                 // convert to a string
                 cellpose_args_cmd = cellpose_args_cmd.stream().map(s -> {
@@ -76,38 +72,21 @@ public class Cellpose {
         } else {
             throw new UnsupportedOperationException("Virtual env type unrecognized!");
         }
+        return cmd;
+    }
 
-        System.out.println(cmd.toString().replace(",", ""));
-        ProcessBuilder pb = new ProcessBuilder(cmd).redirectErrorStream(true);
-
-        Process p = pb.start();
-        Thread t = new Thread(Thread.currentThread().getName() + "-" + p.hashCode()) {
-            @Override
-            public void run() {
-                BufferedReader stdIn = new BufferedReader(new InputStreamReader(p.getInputStream()));
-                try {
-                    for (String line = stdIn.readLine(); line != null; ) {
-                        System.out.println(line);
-                        line = stdIn.readLine();// you don't want to remove or comment that line! no you don't :P
-                    }
-                } catch (IOException e) {
-                    System.out.println(e.getMessage());
-                }
-            }
-        };
-        t.setDaemon(true);
-        t.start();
-
-        p.waitFor();
-
-        int exitValue = p.exitValue();
-
-        if (exitValue != 0) {
-            System.out.println("Runner " + settings.cellposeEnvDirectory + " exited with value " + exitValue + ". Please check output above for indications of the problem.");
-        } else {
-            System.out.println(settings.envType + " , " + settings.cellposeEnvDirectory + " run finished");
-        }
-
+    // Run the Cellpose command line with the timeout and retries of the task settings, returns the progress and timings of the run
+    static CellposeProgress execute(List<String> options, CellposeTaskSettings settings) throws CellposeException, InterruptedException {
+        List<String> cellpose_args = new ArrayList<>(Arrays.asList("-m", "cellpose"));
+        cellpose_args.addAll(options);
+        List<String> cmd = pythonCommand(cellpose_args, settings);
+
+        settings.output.println(cmd.toString().replace(",", ""));
+        ProcessRunner runner = new ProcessRunner(cmd, settings.output)
+                .setTimeout(settings.timeoutMs)
+                .setRetries(settings.maxAttempts, settings.retryBackoffMs);
+        runner.run();
+        return runner.getProgress();
     }
 
 }
@@ -0,0 +1,60 @@
+package Fluo_Ratio_Bact_Bg_Tools;
+
+import java.io.IOException;
+
+// Failure of a Cellpose/Omnipose run, with the last lines of its output
+public class CellposeException extends IOException {
+
+    private final String output;
+
+    public CellposeException(String message, String output) {
+        this(message, output, null);
+    }
+
+    public CellposeException(String message, String output, Throwable cause) {
+        super(message + (output.isEmpty() ? "" : "\n" + output), cause);
+        this.output = output;
+    }
+
+    public String getOutput() {
+        return output;
+    }
+
+
+    // Process killed after running longer than the timeout
+    public static class Timeout extends CellposeException {
+        private final long timeoutMs;
+
+        public Timeout(String what, long timeoutMs, String output) {
+            super(what + " killed after " + timeoutMs/1000.0 + " s", output);
+            this.timeoutMs = timeoutMs;
+        }
+
+        public long getTimeoutMs() {
+            return timeoutMs;
+        }
+    }
+
+
+    // Process ended with an error exit value, or died (exit value -1 when unknown)
+    public static class Exit extends CellposeException {
+        private final int exitValue;
+
+        public Exit(String what, int exitValue, String output) {
+            super(what + ((exitValue < 0) ? " died" : " exited with value " + exitValue), output);
+            this.exitValue = exitValue;
+        }
+
+        public int getExitValue() {
+            return exitValue;
+        }
+    }
+
+
+    // Run finished without the mask of an image
+    public static class NoMask extends CellposeException {
+        public NoMask(String image, String output) {
+            super("Cellpose did not produce a mask for " + image, output);
+        }
+    }
+}
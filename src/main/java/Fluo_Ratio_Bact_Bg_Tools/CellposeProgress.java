@@ -0,0 +1,69 @@
+package Fluo_Ratio_Bact_Bg_Tools;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Progress and timings parsed from the Cellpose/Omnipose output lines:
+//   progress bars "  45%|####      | 9/20 [00:05<00:06,  1.70it/s]"
+//   "time spent: running network 0.52s; flow+mask computation 0.14" (one per image)
+//   ">>>> TOTAL TIME 12.34 sec"
+public class CellposeProgress {
+
+    private static final Pattern PROGRESS = Pattern.compile("\\|\\s*(\\d+)/(\\d+)\\s*\\[");
+    private static final Pattern IMAGE_TIME = Pattern.compile("running network ([0-9.]+)s; flow\\+mask computation ([0-9.]+)");
+    private static final Pattern TOTAL_TIME = Pattern.compile("TOTAL TIME ([0-9.]+) sec");
+
+    private int done = 0, total = 0, images = 0;
+    private double networkSeconds = 0, maskSeconds = 0, totalSeconds = 0;
+
+
+    public synchronized void parse(String line) {
+        Matcher m = PROGRESS.matcher(line);
+        if (m.find()) {
+            done = Integer.parseInt(m.group(1));
+            total = Integer.parseInt(m.group(2));
+            return;
+        }
+        m = IMAGE_TIME.matcher(line);
+        if (m.find()) {
+            images++;
+            networkSeconds += Double.parseDouble(m.group(1));
+            maskSeconds += Double.parseDouble(m.group(2));
+            return;
+        }
+        m = TOTAL_TIME.matcher(line);
+        if (m.find())
+            totalSeconds += Double.parseDouble(m.group(1));
+    }
+
+    // Last progress bar position
+    public synchronized int getDone() {
+        return done;
+    }
+
+    public synchronized int getTotal() {
+        return total;
+    }
+
+    // Images with timings
+    public synchronized int getImages() {
+        return images;
+    }
+
+    public synchronized double getNetworkSeconds() {
+        return networkSeconds;
+    }
+
+    public synchronized double getMaskSeconds() {
+        return maskSeconds;
+    }
+
+    public synchronized double getTotalSeconds() {
+        return totalSeconds;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d images, network %.2f s, masks %.2f s, total %.2f s", images, networkSeconds, maskSeconds, totalSeconds);
+    }
+}
@@ -3,13 +3,18 @@ package Fluo_Ratio_Bact_Bg_Tools;
 import Fluo_Ratio_Bact_Bg_Tools.CellposeTask;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.io.FileSaver;
 import ij.measure.Calibration;
 import ij.plugin.Concatenator;
 import ij.plugin.Duplicator;
 import ij.process.ImageConverter;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -18,42 +23,47 @@ public class CellposeSegmentImgPlusAdvanced {
     CellposeTaskSettings settings;
     ImagePlus imp;
     ImagePlus cellpose_imp;
+    CellposeWorker worker;
     
     public CellposeSegmentImgPlusAdvanced(CellposeTaskSettings settings, ImagePlus imp) {
         this.settings = settings;
         this.imp = imp;
     }
     
-    public ImagePlus run() {
+    public CellposeSegmentImgPlusAdvanced(CellposeTaskSettings settings, ImagePlus imp, CellposeWorker worker) {
+        this(settings, imp);
+        this.worker = worker;
+    }
+    
+    // Label masks of the frames of imp, failures of Cellpose are thrown as CellposeException
+    public ImagePlus run() throws IOException, InterruptedException {
         
         Calibration cal = imp.getCalibration();
 
-        // Create temp folder to temporarily save the current time-point of the imp
-        String tempDir = IJ.getDirectory("Temp");
-        File cellposeTempDir = new File(tempDir, "cellposeTemp");
-        cellposeTempDir.mkdir();
+        // 2D single channel frames are sent to the worker in memory, no temp file is needed
+        if (worker != null && imp.getNChannels() == 1 && imp.getNSlices() == 1)
+            return runInMemory();
 
-        // When plugin crashes, image files can pile up in the temp folder, so we make sure to clear everything
-        File[] contents = cellposeTempDir.listFiles();
-        if (contents != null) {
-            for (File f : contents) {
-                f.delete();
-            }
-        }
+        // Create a temp folder of our own to temporarily save the time-points of the imp
+        // (several analyses can run at the same time, so the folder is never shared)
+        String tempDir = IJ.getDirectory("Temp");
+        File cellposeTempDir = Files.createTempDirectory(new File(tempDir).toPath(), "cellposeTemp").toFile();
 
-        // Add temp folder to the settings
+        // Add temp folder to a copy of the settings, the caller settings can be used by other tasks
+        settings = settings.copy();
         settings.setDatasetDir(cellposeTempDir.toString());
 
 
         if (settings.use3D == true) {
             if (imp.getNSlices() == 1) 
-                System.out.println("WARNING: Can't use 3D mode on 2D image. 2D mode will be used");
+                settings.output.println("WARNING: Can't use 3D mode on 2D image. 2D mode will be used");
                 settings.use3D(false);
         }
 
         // Settings are done, we can now process the imp with Cellpose
         CellposeTask cellposeTask = new CellposeTask();
         cellposeTask.setSettings(settings);
+        cellposeTask.setWorker(worker);
         
         try {
             // Can't process time-lapse directly, so we'll save one time-point after another
@@ -71,7 +81,7 @@ public class CellposeSegmentImgPlusAdvanced {
                 File t_imp_path = new File(cellposeTempDir, imp.getShortTitle() + "-t" + t_idx + ".tif");
                 FileSaver fs = new FileSaver(t_imp);
                 fs.saveAsTiff(t_imp_path.toString());
-                System.out.println(t_imp_path.toString());
+                settings.output.println(t_imp_path.toString());
                 // Add to list of paths to delete at the end of operations
                 t_imp_paths.add(t_imp_path);
 
@@ -91,6 +101,8 @@ public class CellposeSegmentImgPlusAdvanced {
             ArrayList<ImagePlus> imps = new ArrayList<>(impFrames);
             for (int t_idx = 1; t_idx <= impFrames; t_idx++) {
                 ImagePlus cellpose_t_imp = IJ.openImage(cellpose_masks_paths.get(t_idx - 1).toString());
+                if (cellpose_t_imp == null)
+                    throw new CellposeException.NoMask(t_imp_paths.get(t_idx - 1).getName(), "");
                 // make sure to make a 16-bit imp
                 // (issue with time-lapse, first frame have less than 254 objects and latest have more)
                 if (cellpose_t_imp.getBitDepth() != 16) {
@@ -108,18 +120,36 @@ public class CellposeSegmentImgPlusAdvanced {
             cellpose_imp = Concatenator.run(impsArray);
             cellpose_imp.setCalibration(cal);
             cellpose_imp.setTitle(imp.getShortTitle() + "-cellpose");
-
-            // Delete the created files and folder
-            for (int t_idx = 1; t_idx <= impFrames; t_idx++) {
-                t_imp_paths.get(t_idx - 1).delete();
-                cellpose_masks_paths.get(t_idx - 1).delete();
-                cellpose_outlines_paths.get(t_idx - 1).delete();
+       
+        } finally {
+            // Delete the created files and folder, even if Cellpose failed
+            File[] contents = cellposeTempDir.listFiles();
+            if (contents != null) {
+                for (File f : contents) {
+                    f.delete();
+                }
             }
             cellposeTempDir.delete();
-       
-        } catch (Exception e) {
-            e.printStackTrace();
         }
         return cellpose_imp;
     }
+    
+    // Send each frame as raw 16-bit pixels to the worker and build the mask stack from the returned labels
+    private ImagePlus runInMemory() throws IOException {
+        int width = imp.getWidth();
+        int height = imp.getHeight();
+        ImageStack stack = imp.getStack();
+        ImageStack masks = new ImageStack(width, height);
+        for (int t_idx = 1; t_idx <= stack.getSize(); t_idx++) {
+            ImageProcessor ip = stack.getProcessor(t_idx);
+            if (!(ip instanceof ShortProcessor))
+                ip = ip.convertToShort(false);
+            short[] labels = worker.segment((short[]) ip.getPixels(), width, height);
+            masks.addSlice(new ShortProcessor(width, height, labels, null));
+        }
+        cellpose_imp = new ImagePlus(imp.getShortTitle() + "-cellpose", masks);
+        cellpose_imp.setDimensions(1, 1, masks.getSize());
+        cellpose_imp.setCalibration(imp.getCalibration());
+        return cellpose_imp;
+    }
 }
\ No newline at end of file
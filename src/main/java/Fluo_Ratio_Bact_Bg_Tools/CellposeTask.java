@@ -1,22 +1,63 @@
 package Fluo_Ratio_Bact_Bg_Tools;
 
 import Fluo_Ratio_Bact_Bg_Tools.CellposeTaskSettings;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 
 public class CellposeTask {
     
     protected CellposeTaskSettings settings;
+    protected CellposeWorker worker;
 
     public void setSettings(CellposeTaskSettings settings) {
         this.settings = settings;
     }
+    
+    // When a worker is set, images are sent to the already running Omnipose process instead of starting a new one
+    public void setWorker(CellposeWorker worker) {
+        this.worker = worker;
+    }
 
-    public void run() throws Exception {
+    public void run() throws IOException, InterruptedException {
+        if (worker != null) {
+            runWorker();
+            return;
+        }
+        
         ArrayList<String> options = new ArrayList<>();
 
         options.add("--dir");
         options.add("" + settings.datasetDir);
+        
+        options.addAll(modelOptions(settings));
+        
+        options.add("--save_tif");
+
+        options.add("--no_npy");
+        
+        CellposeProgress progress = Cellpose.execute(options, settings);
+        settings.output.println("Cellpose run finished: " + progress);
+    }
+    
+    // Segment each image of the dataset folder with the worker, masks are saved the same way as Cellpose does
+    private void runWorker() throws IOException {
+        File[] files = new File(settings.datasetDir).listFiles();
+        if (files == null)
+            return;
+        for (File f : files) {
+            String name = f.getName();
+            if (!name.endsWith(".tif") || name.endsWith("_cp_masks.tif"))
+                continue;
+            File mask = new File(f.getParent(), name.substring(0, name.length() - 4) + "_cp_masks.tif");
+            worker.segment(f, mask);
+        }
+    }
 
+    // Model and segmentation options, shared by the Cellpose command line and the worker
+    static ArrayList<String> modelOptions(CellposeTaskSettings settings) {
+        ArrayList<String> options = new ArrayList<>();
+        
         options.add("--pretrained_model");
         options.add("" + settings.model);
 
@@ -35,7 +76,7 @@ public class CellposeTask {
         options.add("" + settings.flow_threshold);
        
 
-        System.out.println("Cellpose version is set to:" + settings.version);
+        settings.output.println("Cellpose version is set to:" + settings.version);
         if (settings.version.equals("0.6") || settings.version.equals("2.0")) {
             options.add("--cellprob_threshold");
         } else if (settings.version.equals("0.7") || settings.version.equals("1.0")) {
@@ -78,10 +119,6 @@ public class CellposeTask {
         if (settings.useMxnet)
             options.add("--Mxnet");
         
-        options.add("--save_tif");
-
-        options.add("--no_npy");
-        
-        Cellpose.execute(options, settings, null);
+        return options;
     }
 }
@@ -1,5 +1,6 @@
 package Fluo_Ratio_Bact_Bg_Tools;
 
+import java.io.PrintStream;
 
 public class CellposeTaskSettings {
     
@@ -26,6 +27,13 @@ public class CellposeTaskSettings {
     boolean cluster = false;
     boolean useMxnet = true;
     boolean verbose = false;
+    // Where Cellpose messages go, each task can capture its own output
+    PrintStream output = System.out;
+    // A run (or a worker reply) taking longer is killed (0: no timeout), failed runs are tried again up to maxAttempts
+    // times, waiting retryBackoffMs, then twice longer at each new attempt
+    long timeoutMs = 0;
+    int maxAttempts = 3;
+    long retryBackoffMs = 2000;
     
     
     public CellposeTaskSettings(String model, int ch1, int diameter, String cellposeEnvDirectory) {
@@ -35,6 +43,32 @@ public class CellposeTaskSettings {
         this.cellposeEnvDirectory = cellposeEnvDirectory;
     }
     
+    // Independent copy, so that concurrent tasks do not share their dataset directory or output
+    public CellposeTaskSettings copy() {
+        CellposeTaskSettings settings = new CellposeTaskSettings(model, ch1, diameter, cellposeEnvDirectory);
+        settings.datasetDir = datasetDir;
+        settings.ch2 = ch2;
+        settings.flow_threshold = flow_threshold;
+        settings.cellprob_threshold = cellprob_threshold;
+        settings.stitch_threshold = stitch_threshold;
+        settings.envType = envType;
+        settings.version = version;
+        settings.use3D = use3D;
+        settings.useGpu = useGpu;
+        settings.useFastMode = useFastMode;
+        settings.useResample = useResample;
+        settings.omni = omni;
+        settings.invert = invert;
+        settings.cluster = cluster;
+        settings.useMxnet = useMxnet;
+        settings.verbose = verbose;
+        settings.output = output;
+        settings.timeoutMs = timeoutMs;
+        settings.maxAttempts = maxAttempts;
+        settings.retryBackoffMs = retryBackoffMs;
+        return settings;
+    }
+    
     public CellposeTaskSettings setDatasetDir(String datasetDir) {
         this.datasetDir = datasetDir;
         return this;
@@ -134,5 +168,21 @@ public class CellposeTaskSettings {
         this.verbose = verbose;
         return this;
     }
+    
+    public CellposeTaskSettings setOutput(PrintStream output) {
+        this.output = output;
+        return this;
+    }
+    
+    public CellposeTaskSettings setTimeout(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+        return this;
+    }
+    
+    public CellposeTaskSettings setRetries(int maxAttempts, long retryBackoffMs) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryBackoffMs = retryBackoffMs;
+        return this;
+    }
        
 }
@@ -0,0 +1,341 @@
+package Fluo_Ratio_Bact_Bg_Tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Long-lived Omnipose process keeping the model loaded between images
+// Protocol over the process stdin/stdout, one line per message:
+//   Java   -> worker : "SEG\t<input tif>\t<output mask tif>" or "QUIT"
+//   worker -> Java   : "READY" once the model is loaded, then "OK" or "ERROR <message>" per image
+// Frames can also be sent in memory, without any file, as length-prefixed raw 16-bit little-endian buffers:
+//   Java   -> worker : "FRAME\t<width>\t<height>\t<nb bytes>" followed by the pixels
+//   worker -> Java   : "OK\t<nb bytes>" followed by the label mask pixels, or "ERROR <message>"
+//   after any reply other than the expected "OK\t<nb bytes>" the worker is stopped (and started again for the next frame),
+//   as what it still has to send would be read as the answer to the next frame
+// Anything else the worker prints goes to stderr and is echoed to the settings output, parsed into a CellposeProgress
+// and the last lines are kept for error messages
+// A worker not answering within the settings timeout (model load included) is killed. A dead worker is restarted automatically
+// (after the settings backoff, doubling at each restart) up to maxAttempts - 1 times, then a CellposeException (Timeout, Exit) is thrown
+public class CellposeWorker {
+
+    static final String WORKER_SCRIPT = "cellpose_worker.py";
+
+    private final CellposeTaskSettings settings;
+    private final String script;
+    private Process process;
+    private OutputStream toWorker;
+    private InputStream fromWorker;
+    private ByteBuffer frameBuffer = ByteBuffer.allocate(0).order(ByteOrder.LITTLE_ENDIAN);
+    private int maxRestarts;
+    private final LinkedList<String> lastLines = new LinkedList<>();
+    private static final int MAX_LAST_LINES = 20;
+    private final CellposeProgress progress = new CellposeProgress();
+    // Kills workers not answering in time, timedOut tells that the last worker death was a timeout
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "omnipose-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile boolean timedOut = false;
+
+
+    public CellposeWorker(CellposeTaskSettings settings) {
+        this(settings, null);
+    }
+
+    // Script can be replaced, e.g. by a stub speaking the same protocol
+    public CellposeWorker(CellposeTaskSettings settings, String script) {
+        this.settings = settings;
+        this.script = script;
+        this.maxRestarts = settings.maxAttempts - 1;
+    }
+
+    public CellposeWorker setMaxRestarts(int maxRestarts) {
+        this.maxRestarts = maxRestarts;
+        return this;
+    }
+
+
+    public synchronized void start() throws IOException {
+        String line = launch();
+        if (!"READY".equals(line)) {
+            stop();
+            if (timedOut)
+                throw new CellposeException.Timeout("Omnipose worker start", settings.timeoutMs, lastOutput());
+            throw new CellposeException("Omnipose worker failed to start" + (line == null ? "" : ": " + line), lastOutput());
+        }
+    }
+
+
+    // Start the worker if it is not running, returns its first line ("READY" once the model is loaded, null if it died or
+    // timed out). A worker that did not start is left as is, for restart() to report its exit
+    private String launch() throws IOException {
+        if (isAlive())
+            return("READY");
+        List<String> args = new ArrayList<>();
+        args.add(script != null ? script : extractScript().toString());
+        args.addAll(CellposeTask.modelOptions(settings));
+        List<String> cmd = Cellpose.pythonCommand(args, settings);
+        settings.output.println(cmd.toString().replace(",", ""));
+
+        process = new ProcessBuilder(cmd).start();
+        toWorker = new BufferedOutputStream(process.getOutputStream(), 1 << 16);
+        fromWorker = new BufferedInputStream(process.getInputStream(), 1 << 16);
+        echo(process.getErrorStream());
+
+        // Wait for the model to be loaded
+        ScheduledFuture<?> watch = watch();
+        String line;
+        try {
+            line = readLine();
+        } catch (IOException e) {
+            line = null;
+        } finally {
+            unwatch(watch);
+        }
+        if (timedOut)
+            return(null);
+        if ("READY".equals(line))
+            settings.output.println("Omnipose worker started");
+        else if (line != null)
+            settings.output.println("Omnipose worker failed to start: " + line);
+        return(line);
+    }
+
+
+    public synchronized boolean isAlive() {
+        return process != null && process.isAlive();
+    }
+
+
+    // Segment one image saved on disk, the label mask is written to maskFile
+    public synchronized void segment(File imageFile, File maskFile) throws IOException {
+        for (int restarts = 0; ; restarts++) {
+            if (restarts > 0)
+                restart(restarts, imageFile.getName());
+            // A model load that fails or times out is restarted as a crash
+            if (!"READY".equals(launch()))
+                continue;
+            String reply;
+            ScheduledFuture<?> watch = watch();
+            try {
+                writeLine("SEG\t" + imageFile.getAbsolutePath() + "\t" + maskFile.getAbsolutePath());
+                toWorker.flush();
+                reply = readLine();
+            } catch (IOException e) {
+                reply = null;
+            } finally {
+                unwatch(watch);
+            }
+            // A partial reply of a killed worker is a crash
+            if (timedOut)
+                reply = null;
+            if ("OK".equals(reply))
+                return;
+            if (reply != null)
+                throw new CellposeException("Omnipose worker could not segment " + imageFile.getName() + ": " + reply, lastOutput());
+        }
+    }
+
+
+    // Segment one 16-bit frame held in memory, returns its label mask (same size)
+    public synchronized short[] segment(short[] pixels, int width, int height) throws IOException {
+        int nBytes = 2*width*height;
+        if (frameBuffer.capacity() < nBytes)
+            frameBuffer = ByteBuffer.allocate(nBytes).order(ByteOrder.LITTLE_ENDIAN);
+        for (int restarts = 0; ; restarts++) {
+            if (restarts > 0)
+                restart(restarts, "a frame");
+            // A model load that fails or times out is restarted as a crash
+            if (!"READY".equals(launch()))
+                continue;
+            String reply;
+            ScheduledFuture<?> watch = watch();
+            try {
+                frameBuffer.clear();
+                frameBuffer.asShortBuffer().put(pixels, 0, width*height);
+                writeLine("FRAME\t" + width + "\t" + height + "\t" + nBytes);
+                toWorker.write(frameBuffer.array(), 0, nBytes);
+                toWorker.flush();
+                reply = readLine();
+                if (reply != null && reply.equals("OK\t" + nBytes)) {
+                    readFully(frameBuffer.array(), nBytes);
+                    short[] mask = new short[width*height];
+                    frameBuffer.clear();
+                    frameBuffer.asShortBuffer().get(mask);
+                    return mask;
+                }
+            } catch (IOException e) {
+                reply = null;
+            } finally {
+                unwatch(watch);
+            }
+            if (reply != null && !timedOut) {
+                // Out of sync worker
+                stop();
+                throw new CellposeException("Omnipose worker could not segment frame: " + reply, lastOutput());
+            }
+        }
+    }
+
+
+    // The worker died (or was killed) on what: throws if it cannot be restarted again, otherwise waits before the restart
+    private void restart(int restarts, String what) throws IOException {
+        // A worker whose output just ended may not have exited yet
+        int exitValue = -1;
+        try {
+            if (process != null && process.waitFor(1, TimeUnit.SECONDS))
+                exitValue = process.exitValue();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }
+        stop();
+        if (restarts > maxRestarts) {
+            if (timedOut)
+                throw new CellposeException.Timeout("Omnipose worker on " + what, settings.timeoutMs, lastOutput());
+            throw new CellposeException.Exit("Omnipose worker on " + what, exitValue, lastOutput());
+        }
+        long wait = settings.retryBackoffMs << (restarts - 1);
+        settings.output.println("Omnipose worker " + (timedOut ? "timed out" : "died") + ", restarting it in " + wait/1000.0 + " s");
+        try {
+            Thread.sleep(wait);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }
+    }
+
+
+    // Kill the worker if it does not answer within the timeout, null if there is no timeout
+    private ScheduledFuture<?> watch() {
+        timedOut = false;
+        if (settings.timeoutMs <= 0)
+            return null;
+        Process watched = process;
+        return WATCHDOG.schedule(() -> {
+            timedOut = true;
+            ProcessRunner.destroyTree(watched);
+        }, settings.timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+
+    private void unwatch(ScheduledFuture<?> watch) {
+        if (watch != null)
+            watch.cancel(false);
+    }
+
+
+    private void writeLine(String line) throws IOException {
+        toWorker.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    // Protocol line from the worker stdout, null at end of stream
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int b = fromWorker.read(); b != '\n'; b = fromWorker.read()) {
+            if (b < 0)
+                return line.size() == 0 ? null : line.toString("UTF-8");
+            line.write(b);
+        }
+        return line.toString("UTF-8").trim();
+    }
+
+
+    private void readFully(byte[] bytes, int n) throws IOException {
+        for (int off = 0; off < n; ) {
+            int read = fromWorker.read(bytes, off, n - off);
+            if (read < 0)
+                throw new EOFException("Omnipose worker output ended in the middle of a mask");
+            off += read;
+        }
+    }
+
+
+    public synchronized void stop() {
+        if (process == null)
+            return;
+        try {
+            if (process.isAlive()) {
+                writeLine("QUIT");
+                toWorker.flush();
+            }
+        } catch (IOException e) {
+            // Process already gone
+        }
+        process.destroy();
+        process = null;
+    }
+
+
+    private File extractScript() throws IOException {
+        File scriptFile = File.createTempFile("cellpose_worker", ".py");
+        scriptFile.deleteOnExit();
+        try (InputStream in = CellposeWorker.class.getResourceAsStream("/" + WORKER_SCRIPT)) {
+            if (in == null)
+                throw new IOException(WORKER_SCRIPT + " not found in plugin resources");
+            Files.copy(in, scriptFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return scriptFile;
+    }
+
+
+    // Last lines printed by the worker, to explain a failure
+    private String lastOutput() {
+        synchronized (lastLines) {
+            return String.join("\n", lastLines);
+        }
+    }
+
+
+    // Progress and timings of all the frames segmented by the worker
+    public CellposeProgress getProgress() {
+        return progress;
+    }
+
+
+    private void echo(InputStream stream) {
+        Thread t = new Thread(Thread.currentThread().getName() + "-worker-" + process.hashCode()) {
+            @Override
+            public void run() {
+                BufferedReader stdErr = new BufferedReader(new InputStreamReader(stream));
+                try {
+                    for (String line = stdErr.readLine(); line != null; line = stdErr.readLine()) {
+                        settings.output.println(line);
+                        progress.parse(line);
+                        synchronized (lastLines) {
+                            lastLines.add(line);
+                            if (lastLines.size() > MAX_LAST_LINES)
+                                lastLines.removeFirst();
+                        }
+                    }
+                } catch (IOException e) {
+                    settings.output.println(e.getMessage());
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+}
@@ -0,0 +1,168 @@
+package Fluo_Ratio_Bact_Bg_Tools;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Runs a Cellpose/Omnipose command line with its own output buffer: lines (also progress bar updates, ended by \r) are
+// echoed to the task output, parsed into a CellposeProgress and the last ones kept for error messages
+// A run longer than the timeout is killed, failed runs are tried again after a backoff doubling at each attempt
+// Failures are reported as CellposeException (Timeout, Exit)
+public class ProcessRunner {
+
+    private static final int MAX_LAST_LINES = 50;
+
+    private final List<String> cmd;
+    private final PrintStream output;
+    private long timeoutMs = 0;
+    private int maxAttempts = 1;
+    private long backoffMs = 0;
+    private final LinkedList<String> lastLines = new LinkedList<>();
+    private CellposeProgress progress = new CellposeProgress();
+
+
+    public ProcessRunner(List<String> cmd, PrintStream output) {
+        this.cmd = cmd;
+        this.output = output;
+    }
+
+    // 0 for no timeout
+    public ProcessRunner setTimeout(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+        return this;
+    }
+
+    public ProcessRunner setRetries(int maxAttempts, long backoffMs) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.backoffMs = backoffMs;
+        return this;
+    }
+
+
+    public void run() throws CellposeException, InterruptedException {
+        CellposeException failure = null;
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            if (attempt > 1) {
+                long wait = backoffMs << (attempt - 2);
+                output.println(failure.getMessage());
+                output.println("Attempt " + attempt + "/" + maxAttempts + " in " + wait/1000.0 + " s");
+                Thread.sleep(wait);
+            }
+            try {
+                runOnce();
+                return;
+            } catch (CellposeException ex) {
+                failure = ex;
+            }
+        }
+        throw failure;
+    }
+
+
+    private void runOnce() throws CellposeException, InterruptedException {
+        synchronized (lastLines) {
+            lastLines.clear();
+        }
+        progress = new CellposeProgress();
+        Process p;
+        try {
+            p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        } catch (IOException ex) {
+            throw new CellposeException("Cannot start " + cmd.get(0), "", ex);
+        }
+        Thread reader = new Thread(() -> read(p.getInputStream()), Thread.currentThread().getName() + "-" + p.hashCode());
+        reader.setDaemon(true);
+        reader.start();
+
+        boolean finished = true;
+        try {
+            if (timeoutMs > 0)
+                finished = p.waitFor(timeoutMs, TimeUnit.MILLISECONDS);
+            else
+                p.waitFor();
+        } catch (InterruptedException ex) {
+            destroyTree(p);
+            throw ex;
+        }
+        if (!finished) {
+            destroyTree(p);
+            p.waitFor();
+            reader.join(1000);
+            throw new CellposeException.Timeout("Cellpose", timeoutMs, getLastOutput());
+        }
+        // Remaining output
+        reader.join(1000);
+        if (p.exitValue() != 0)
+            throw new CellposeException.Exit("Cellpose", p.exitValue(), getLastOutput());
+    }
+
+
+    // Kill a process and the processes it started (python workers of the model, dataloaders), children first so that
+    // they cannot outlive it. ProcessHandle needs Java 9, on Java 8 only the process itself is killed
+    static void destroyTree(Process p) {
+        try {
+            Class<?> handleClass = Class.forName("java.lang.ProcessHandle");
+            Method destroy = handleClass.getMethod("destroyForcibly");
+            Object handle = Process.class.getMethod("toHandle").invoke(p);
+            Object[] descendants = ((Stream<?>) handleClass.getMethod("descendants").invoke(handle)).toArray();
+            for (Object child : descendants)
+                destroy.invoke(child);
+        } catch (ReflectiveOperationException ex) {
+            // Java 8
+        }
+        p.destroyForcibly();
+    }
+
+
+    private void read(InputStream stream) {
+        StringBuilder line = new StringBuilder();
+        try (Reader in = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            for (int c = in.read(); c >= 0; c = in.read()) {
+                if (c == '\n' || c == '\r') {
+                    if (line.length() > 0)
+                        addLine(line.toString());
+                    line.setLength(0);
+                } else {
+                    line.append((char) c);
+                }
+            }
+            if (line.length() > 0)
+                addLine(line.toString());
+        } catch (IOException ex) {
+            output.println(ex.getMessage());
+        }
+    }
+
+
+    private void addLine(String line) {
+        output.println(line);
+        progress.parse(line);
+        synchronized (lastLines) {
+            lastLines.add(line);
+            if (lastLines.size() > MAX_LAST_LINES)
+                lastLines.removeFirst();
+        }
+    }
+
+
+    public String getLastOutput() {
+        synchronized (lastLines) {
+            return String.join("\n", lastLines);
+        }
+    }
+
+
+    // Progress of the last (or running) attempt
+    public CellposeProgress getProgress() {
+        return progress;
+    }
+}
@@ -0,0 +1,101 @@
+# Persistent Omnipose/Cellpose worker used by Fluo_Ratio_Bact_Bg_Tools.CellposeWorker
+# Loads the model once, then segments the images sent on stdin until "QUIT"
+#   stdin  : "SEG\t<input tif>\t<output mask tif>" or "QUIT"
+#   stdout : "READY" once the model is loaded, then "OK" or "ERROR <message>" per request
+# In-memory frames, raw uint16 little-endian buffers prefixed by their length:
+#   stdin  : "FRAME\t<width>\t<height>\t<nb bytes>" followed by the pixels
+#   stdout : "OK\t<nb bytes>" followed by the label mask pixels, or "ERROR <message>" (also for masks of more than 65535 labels)
+# Every other message is written to stderr so that stdout only carries the protocol
+import argparse
+import sys
+
+protocol = sys.stdout.buffer
+requests = sys.stdin.buffer
+sys.stdout = sys.stderr
+
+
+def reply(msg, data=None):
+    protocol.write((msg + "\n").encode("utf-8"))
+    if data is not None:
+        protocol.write(data)
+    protocol.flush()
+
+
+def read_exactly(n):
+    data = requests.read(n)
+    if data is None or len(data) != n:
+        raise EOFError("frame truncated")
+    return data
+
+
+parser = argparse.ArgumentParser()
+parser.add_argument("--pretrained_model", default="cyto")
+parser.add_argument("--chan", type=int, default=0)
+parser.add_argument("--chan2", type=int, default=0)
+parser.add_argument("--diameter", type=float, default=30.)
+parser.add_argument("--flow_threshold", type=float, default=0.4)
+parser.add_argument("--mask_threshold", type=float, default=None)
+parser.add_argument("--cellprob_threshold", type=float, default=None)
+parser.add_argument("--stitch_threshold", type=float, default=0.0)
+parser.add_argument("--omni", action="store_true")
+parser.add_argument("--cluster", action="store_true")
+parser.add_argument("--invert", action="store_true")
+parser.add_argument("--do_3D", action="store_true")
+parser.add_argument("--use_gpu", action="store_true")
+parser.add_argument("--fast_mode", action="store_true")
+parser.add_argument("--resample", action="store_true")
+parser.add_argument("--verbose", action="store_true")
+parser.add_argument("--Mxnet", action="store_true")
+args, _ = parser.parse_known_args()
+
+try:
+    import numpy as np
+    from cellpose import models, io
+    model = models.CellposeModel(gpu=args.use_gpu, pretrained_model=args.pretrained_model,
+                                 torch=not args.Mxnet, omni=args.omni)
+except Exception as e:
+    reply("ERROR " + repr(e))
+    sys.exit(1)
+
+threshold = args.mask_threshold if args.mask_threshold is not None else args.cellprob_threshold
+eval_args = dict(channels=[args.chan, args.chan2], diameter=args.diameter, flow_threshold=args.flow_threshold,
+                 invert=args.invert, do_3D=args.do_3D, net_avg=not args.fast_mode, augment=False,
+                 resample=args.resample, omni=args.omni, cluster=args.cluster)
+if threshold is not None:
+    eval_args["mask_threshold" if args.mask_threshold is not None else "cellprob_threshold"] = threshold
+if args.stitch_threshold > 0:
+    eval_args["stitch_threshold"] = args.stitch_threshold
+
+reply("READY")
+
+for line in iter(requests.readline, b""):
+    line = line.decode("utf-8")
+    fields = line.rstrip("\n").split("\t")
+    if fields[0] == "QUIT":
+        break
+    if fields[0] == "FRAME" and len(fields) == 4:
+        width, height, nbytes = int(fields[1]), int(fields[2]), int(fields[3])
+        # Pixels are always read, so that the stream stays in sync even if segmentation fails
+        data = read_exactly(nbytes)
+        try:
+            img = np.frombuffer(data, dtype="<u2").reshape(height, width)
+            masks = model.eval(img, **eval_args)[0]
+            # Labels are sent as 16-bit values, more labels would wrap around
+            if masks.max() > 65535:
+                reply("ERROR %d labels do not fit in 16 bits" % masks.max())
+                continue
+            out = masks.astype("<u2").tobytes()
+            reply("OK\t" + str(len(out)), out)
+        except Exception as e:
+            reply("ERROR " + repr(e))
+        continue
+    if fields[0] != "SEG" or len(fields) != 3:
+        reply("ERROR bad request " + line.strip())
+        continue
+    try:
+        img = io.imread(fields[1])
+        masks = model.eval(img, **eval_args)[0]
+        io.imsave(fields[2], masks.astype(np.uint16))
+        reply("OK")
+    except Exception as e:
+        reply("ERROR " + repr(e))
@@ -0,0 +1,134 @@
+package Fluo_Ratio_Bact_Bg;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.AfterClass;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+// Moving histogram backgrounds against the median (sorted pixels) and mean of each tile computed from scratch
+public class BackgroundEstimatorTest {
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(3);
+
+
+    @AfterClass
+    public static void shutdown() {
+        POOL.shutdown();
+    }
+
+
+    // Random 16-bit image, values over the full range or over a narrow range (many equal values)
+    private static ShortProcessor randomShorts(int width, int height, int maxValue, long seed) {
+        Random random = new Random(seed);
+        short[] pixels = new short[width*height];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = (short) random.nextInt(maxValue + 1);
+        return(new ShortProcessor(width, height, pixels, null));
+    }
+
+
+    private static ByteProcessor randomBytes(int width, int height, long seed) {
+        Random random = new Random(seed);
+        byte[] pixels = new byte[width*height];
+        random.nextBytes(pixels);
+        return(new ByteProcessor(width, height, pixels));
+    }
+
+
+    // Sorted pixels of a tile
+    private static int[] tilePixels(ImageProcessor ip, int x0, int y0, int size) {
+        int[] values = new int[size*size];
+        for (int y = 0, i = 0; y < size; y++)
+            for (int x = 0; x < size; x++, i++)
+                values[i] = (int) ip.getf(x0 + x, y0 + y);
+        Arrays.sort(values);
+        return(values);
+    }
+
+
+    private static void checkTiles(ImageProcessor ip, int tileSize, int stride, String method) {
+        BackgroundEstimator estimator = new BackgroundEstimator(tileSize, stride, method, POOL);
+        double[][] bg = estimator.tileBackgrounds(ip);
+        assertEquals(estimator.nbTiles(ip.getWidth()), bg.length);
+        for (int tx = 0; tx < bg.length; tx++) {
+            assertEquals(estimator.nbTiles(ip.getHeight()), bg[tx].length);
+            for (int ty = 0; ty < bg[tx].length; ty++) {
+                int[] values = tilePixels(ip, tx*stride, ty*stride, tileSize);
+                String tile = method + " of tile " + tx + "," + ty + " (size " + tileSize + ", stride " + stride + ")";
+                if (method.equals("median")) {
+                    // ImageJ definition: first value whose cumulative count exceeds half of the pixels
+                    assertEquals(tile, values[values.length/2], bg[tx][ty], 0);
+                } else {
+                    long sum = 0;
+                    for (int v : values)
+                        sum += v;
+                    assertEquals(tile, (double) sum / values.length, bg[tx][ty], 1e-9);
+                }
+            }
+        }
+    }
+
+
+    @Test
+    public void medianOfShortTiles() {
+        for (int seed = 0; seed < 4; seed++) {
+            ShortProcessor ip = randomShorts(97 + 13*seed, 83 + 7*seed, 65535, seed);
+            checkTiles(ip, 20, 20, "median");
+            checkTiles(ip, 16, 5, "median");
+            checkTiles(ip, 9, 1, "median");
+        }
+    }
+
+
+    @Test
+    public void medianWithRepeatedValues() {
+        // Few distinct values, medians fall on long runs of equal values and on coarse bin borders
+        ShortProcessor ip = randomShorts(64, 64, 300, 42);
+        checkTiles(ip, 10, 3, "median");
+        checkTiles(ip, 8, 8, "median");
+    }
+
+
+    @Test
+    public void meanOfShortTiles() {
+        ShortProcessor ip = randomShorts(101, 77, 65535, 7);
+        checkTiles(ip, 20, 20, "mean");
+        checkTiles(ip, 12, 4, "mean");
+    }
+
+
+    @Test
+    public void byteTiles() {
+        ByteProcessor ip = randomBytes(90, 70, 3);
+        checkTiles(ip, 15, 6, "median");
+        checkTiles(ip, 15, 6, "mean");
+    }
+
+
+    @Test
+    public void minTileHasLowestBackground() {
+        ShortProcessor ip = randomShorts(120, 100, 4000, 11);
+        // Dark square over more than half of a tile only at positions off the tile grid, found with a smaller stride
+        for (int y = 46; y < 61; y++)
+            for (int x = 36; x < 51; x++)
+                ip.set(x, y, 10);
+        RoiBg roiBg = new BackgroundEstimator(20, 5, "median", POOL).findMinTile(ip);
+        assertEquals(10, roiBg.getBgInt(), 0);
+        Rectangle overlap = roiBg.getRoi().getBounds().intersection(new Rectangle(36, 46, 15, 15));
+        assertTrue(overlap.width*overlap.height > 200);
+        assertTrue(new BackgroundEstimator(20, "median").findMinTile(ip).getBgInt() > 10);
+    }
+
+
+    @Test
+    public void imageSmallerThanTile() {
+        assertNull(new BackgroundEstimator(50, "median").computeMap(randomShorts(40, 60, 100, 1)));
+    }
+}
@@ -0,0 +1,131 @@
+package Fluo_Ratio_Bact_Bg;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+// Links by overlap, by distance through the grid, divisions and saved tracker states on rectangle bacteria
+public class CellTrackerTest {
+
+    private static final int WIDTH = 200, HEIGHT = 100;
+
+
+    // Frame of rectangles {label, x, y, width, height}, with its label plane (null for distance-only linking)
+    private static FrameResults frame(int[][] rects, boolean labelPlane) {
+        FrameResults frame = new FrameResults("image", 1, 0, rects.length);
+        ShortProcessor labels = new ShortProcessor(WIDTH, HEIGHT);
+        for (int[] r : rects) {
+            labels.setValue(r[0]);
+            labels.setRoi(r[1], r[2], r[3], r[4]);
+            labels.fill();
+            frame.add(r[0], r[1] + (r[3] - 1)/2.0, r[2] + (r[4] - 1)/2.0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+        }
+        labels.resetRoi();
+        frame.labelPlane = labelPlane ? labels : null;
+        return(frame);
+    }
+
+
+    // Track of the bacterium with the given label
+    private static int track(FrameResults frame, int label) {
+        for (int i = 0; i < frame.size(); i++)
+            if (frame.getLabel(i) == label)
+                return(frame.getTrackId(i));
+        throw new IllegalArgumentException("No label " + label);
+    }
+
+
+    @Test
+    public void overlapWinsOverDistance() {
+        CellTracker tracker = new CellTracker(100, 1);
+        FrameResults first = frame(new int[][] {{1, 10, 10, 20, 5}, {2, 60, 10, 20, 5}}, true);
+        tracker.track(first);
+        // Labels swapped, the second bacterium moved closer to the centroid of the first one but still overlapping its own
+        FrameResults second = frame(new int[][] {{2, 12, 10, 20, 5}, {1, 45, 10, 20, 5}}, true);
+        tracker.track(second);
+        assertEquals(track(first, 1), track(second, 2));
+        assertEquals(track(first, 2), track(second, 1));
+    }
+
+
+    @Test
+    public void fullOverlapWinsOverDistance() {
+        CellTracker tracker = new CellTracker(25, 1);
+        FrameResults first = frame(new int[][] {{1, 10, 10, 20, 5}, {2, 30, 10, 20, 5}}, true);
+        tracker.track(first);
+        // Bacterium 5 is bacterium 1 (IoU 1, highest score) and close to bacterium 2
+        FrameResults second = frame(new int[][] {{5, 10, 10, 20, 5}}, true);
+        tracker.track(second);
+        assertEquals(track(first, 1), track(second, 5));
+    }
+
+
+    @Test
+    public void distanceLinksThroughTheGrid() {
+        // Bacteria every 7 pixels on a 2000 x 2000 field, moved by (2, 1) with shuffled labels and no label plane
+        int n = 0;
+        double[][] centroids = new double[300*300][];
+        for (int y = 0; y < 2000; y += 7)
+            for (int x = 0; x < 2000; x += 7)
+                centroids[n++] = new double[] {x, y};
+        CellTracker tracker = new CellTracker(3, 1);
+        FrameResults first = new FrameResults("image", 1, 0, n);
+        for (int i = 0; i < n; i++)
+            first.add(i + 1, centroids[i][0], centroids[i][1], 0, 0, 0, 0, 0, 0, 0, 0, 0);
+        tracker.track(first);
+        int[] labels = new int[n];
+        for (int i = 0; i < n; i++)
+            labels[i] = i + 1;
+        Random random = new Random(7);
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1), l = labels[i];
+            labels[i] = labels[j];
+            labels[j] = l;
+        }
+        FrameResults second = new FrameResults("image", 2, 0, n);
+        for (int i = 0; i < n; i++) {
+            // The last bacterium jumps too far and starts a new track
+            double move = (i == n - 1) ? 10 : 1;
+            second.add(labels[i], centroids[i][0] + 2*move, centroids[i][1] + move, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+        }
+        tracker.track(second);
+        for (int i = 0; i < n - 1; i++)
+            assertEquals(first.getTrackId(i), second.getTrackId(i));
+        assertEquals(n + 1, second.getTrackId(n - 1));
+    }
+
+
+    @Test
+    public void divisionKeepsOneTrack() {
+        CellTracker tracker = new CellTracker(10, 1);
+        FrameResults first = frame(new int[][] {{1, 10, 10, 22, 5}}, true);
+        tracker.track(first);
+        // The larger daughter keeps the track, the other one starts a new track
+        FrameResults second = frame(new int[][] {{1, 10, 10, 13, 5}, {2, 24, 10, 8, 5}}, true);
+        tracker.track(second);
+        assertEquals(track(first, 1), track(second, 1));
+        assertEquals(2, track(second, 2));
+    }
+
+
+    @Test
+    public void restoredStateContinuesTracks() {
+        CellTracker tracker = new CellTracker(10, 1);
+        tracker.track(frame(new int[][] {{1, 10, 10, 20, 5}, {2, 60, 10, 20, 5}, {3, 110, 50, 20, 5}}, true));
+        tracker.track(frame(new int[][] {{3, 12, 11, 20, 5}, {1, 62, 11, 20, 5}, {2, 150, 80, 20, 5}}, true));
+        String state = tracker.state();
+        CellTracker restored = CellTracker.restore(10, state);
+        assertEquals(state, restored.state());
+
+        // The first frame after a restore is linked by distance, as the original tracker without label plane
+        int[][] next = {{4, 14, 12, 20, 5}, {1, 64, 12, 20, 5}, {2, 180, 80, 20, 5}, {3, 152, 81, 20, 5}};
+        FrameResults expected = frame(next, false), resumed = frame(next, true);
+        tracker.track(expected);
+        restored.track(resumed);
+        for (int i = 0; i < expected.size(); i++)
+            assertEquals(expected.getTrackId(i), resumed.getTrackId(i));
+        assertEquals(tracker.state(), restored.state());
+        assertNotEquals(track(resumed, 2), track(resumed, 3));
+    }
+}
@@ -0,0 +1,135 @@
+package Fluo_Ratio_Bact_Bg;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+// Rotating calipers against the largest distance of all point pairs and the smallest width over all supporting lines
+public class FeretCalculatorTest {
+
+    private static final double EPS = 1e-9;
+
+
+    // Largest distance between two points, O(n²)
+    private static double bruteMaxFeret(double[] x, double[] y, int n) {
+        double max = 0;
+        for (int i = 0; i < n; i++)
+            for (int j = i + 1; j < n; j++)
+                max = Math.max(max, Math.hypot(x[j] - x[i], y[j] - y[i]));
+        return(max);
+    }
+
+
+    // Smallest width of the points between two parallel lines, one of them going through two points with all the points
+    // on the same side, 0 for collinear points, O(n³)
+    private static double bruteMinFeret(double[] x, double[] y, int n) {
+        double min = Double.MAX_VALUE;
+        for (int i = 0; i < n; i++)
+            for (int j = 0; j < n; j++) {
+                double ex = x[j] - x[i], ey = y[j] - y[i];
+                double edge = Math.hypot(ex, ey);
+                if (edge == 0)
+                    continue;
+                double lowest = 0, highest = 0;
+                for (int k = 0; k < n; k++) {
+                    double d = (ex*(y[k] - y[i]) - ey*(x[k] - x[i])) / edge;
+                    lowest = Math.min(lowest, d);
+                    highest = Math.max(highest, d);
+                }
+                if (lowest > -EPS || highest < EPS)
+                    min = Math.min(min, highest - lowest);
+            }
+        return((min == Double.MAX_VALUE) ? 0 : min);
+    }
+
+
+    private static void check(double[] x, double[] y, int n) {
+        FeretCalculator feret = new FeretCalculator();
+        feret.compute(x, y, n);
+        assertEquals("max Feret of " + n + " points", bruteMaxFeret(x, y, n), feret.getMaxFeret(), 1e-9);
+        assertEquals("min Feret of " + n + " points", bruteMinFeret(x, y, n), feret.getMinFeret(), 1e-9);
+        double[] p = feret.getMaxFeretPoints();
+        assertEquals(feret.getMaxFeret(), Math.hypot(p[2] - p[0], p[3] - p[1]), 1e-9);
+        p = feret.getMinFeretPoints();
+        assertEquals(feret.getMinFeret(), Math.hypot(p[2] - p[0], p[3] - p[1]), 1e-9);
+    }
+
+
+    @Test
+    public void randomPoints() {
+        Random random = new Random(1);
+        for (int test = 0; test < 200; test++) {
+            int n = 1 + random.nextInt(40);
+            double[] x = new double[n], y = new double[n];
+            for (int i = 0; i < n; i++) {
+                x[i] = 100*random.nextDouble();
+                y[i] = 50*random.nextDouble();
+            }
+            check(x, y, n);
+        }
+    }
+
+
+    @Test
+    public void randomPixels() {
+        // Integer coordinates: duplicates, collinear points and hull edges parallel to the axes
+        Random random = new Random(2);
+        for (int test = 0; test < 200; test++) {
+            int n = 1 + random.nextInt(60);
+            int w = 1 + random.nextInt(20), h = 1 + random.nextInt(8);
+            double[] x = new double[n], y = new double[n];
+            for (int i = 0; i < n; i++) {
+                x[i] = random.nextInt(w);
+                y[i] = random.nextInt(h);
+            }
+            check(x, y, n);
+        }
+    }
+
+
+    @Test
+    public void degenerateSets() {
+        check(new double[] {3}, new double[] {4}, 1);
+        check(new double[] {3, 3}, new double[] {4, 4}, 2);
+        check(new double[] {0, 5}, new double[] {0, 0}, 2);
+        check(new double[] {0, 1, 2, 3}, new double[] {0, 1, 2, 3}, 4);
+        check(new double[] {0, 2, 1, 0, 2}, new double[] {0, 0, 0, 0, 0}, 5);
+    }
+
+
+    @Test
+    public void pixelCornersOfCenterHull() {
+        // Feret values of the pixel squares from the center hull are those of all the pixel corners
+        Random random = new Random(3);
+        for (int test = 0; test < 100; test++) {
+            int n = 1 + random.nextInt(30);
+            double[] x = new double[n], y = new double[n];
+            double[] cornersX = new double[4*n], cornersY = new double[4*n];
+            for (int i = 0; i < n; i++) {
+                x[i] = random.nextInt(25);
+                y[i] = random.nextInt(10);
+                for (int c = 0; c < 4; c++) {
+                    cornersX[4*i + c] = x[i] + ((c & 1) == 0 ? -0.5 : 0.5);
+                    cornersY[4*i + c] = y[i] + ((c & 2) == 0 ? -0.5 : 0.5);
+                }
+            }
+            FeretCalculator feret = new FeretCalculator();
+            feret.compute(x, y, n);
+            feret.computePixelCorners();
+            assertEquals(bruteMaxFeret(cornersX, cornersY, 4*n), feret.getMaxFeret(), 1e-9);
+            assertEquals(bruteMinFeret(cornersX, cornersY, 4*n), feret.getMinFeret(), 1e-9);
+        }
+    }
+
+
+    @Test
+    public void reusedBetweenCalls() {
+        FeretCalculator feret = new FeretCalculator();
+        feret.compute(new double[] {0, 10, 10, 0, 5}, new double[] {0, 0, 4, 4, 2}, 5);
+        assertEquals(Math.hypot(10, 4), feret.getMaxFeret(), 1e-12);
+        assertEquals(4, feret.getMinFeret(), 1e-12);
+        feret.compute(new double[] {1, 2}, new double[] {1, 1}, 2);
+        assertEquals(1, feret.getMaxFeret(), 1e-12);
+        assertEquals(0, feret.getMinFeret(), 0);
+        assertEquals(2, feret.getNbHullPoints());
+    }
+}
@@ -0,0 +1,94 @@
+package Fluo_Ratio_Bact_Bg;
+import ij.measure.Measurements;
+import ij.process.ByteProcessor;
+import ij.process.ImageStatistics;
+import ij.process.ShortProcessor;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+// Single scan measurements against the ImageJ statistics of the fluo plane within each object mask
+public class LabelMeasurementsTest {
+
+    // Statistics of the pixels of one label, as ImageJ measures a selection
+    private static ImageStatistics objectStatistics(ShortProcessor labels, ShortProcessor intensity, int label) {
+        byte[] mask = new byte[labels.getPixelCount()];
+        for (int i = 0; i < mask.length; i++)
+            if (labels.get(i) == label)
+                mask[i] = (byte) 255;
+        intensity.setRoi(0, 0, intensity.getWidth(), intensity.getHeight());
+        intensity.setMask(new ByteProcessor(labels.getWidth(), labels.getHeight(), mask));
+        ImageStatistics stats = ImageStatistics.getStatistics(intensity, Measurements.AREA+Measurements.MEAN+Measurements.STD_DEV
+                +Measurements.CENTROID, null);
+        intensity.resetRoi();
+        return(stats);
+    }
+
+
+    @Test
+    public void sameValuesAsImageStatistics() {
+        ShortProcessor labels = SyntheticLabels.labels();
+        ShortProcessor fluo = SyntheticLabels.intensities(5);
+        LabelMeasurements measures = LabelMeasurements.measure(labels, fluo, SyntheticLabels.maxLabel());
+        for (int label = 1; label <= SyntheticLabels.maxLabel(); label++) {
+            ImageStatistics stats = objectStatistics(labels, fluo, label);
+            String object = "label " + label;
+            assertEquals(object, stats.pixelCount, measures.getCount(label));
+            assertEquals(object, stats.pixelCount, measures.getArea(label), 0);
+            assertEquals(object, stats.mean, measures.getIntensityMean(label), 1e-9);
+            assertEquals(object, stats.stdDev, measures.getIntensityStdDev(label), 1e-6);
+            // ImageJ centroids are at pixel centers (x + 0.5)
+            assertEquals(object, stats.xCentroid, measures.getCentroidX(label) + 0.5, 1e-9);
+            assertEquals(object, stats.yCentroid, measures.getCentroidY(label) + 0.5, 1e-9);
+        }
+    }
+
+
+    @Test
+    public void boundingBoxes() {
+        ShortProcessor labels = SyntheticLabels.labels();
+        LabelMeasurements measures = LabelMeasurements.measure(labels, null, SyntheticLabels.maxLabel());
+        for (int label = 1; label <= SyntheticLabels.maxLabel(); label++) {
+            int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = -1, maxY = -1;
+            for (int y = 0; y < labels.getHeight(); y++)
+                for (int x = 0; x < labels.getWidth(); x++)
+                    if (labels.get(x, y) == label) {
+                        minX = Math.min(minX, x);
+                        minY = Math.min(minY, y);
+                        maxX = Math.max(maxX, x);
+                        maxY = Math.max(maxY, y);
+                    }
+            assertEquals(minX, measures.getMinX(label));
+            assertEquals(minY, measures.getMinY(label));
+            assertEquals(maxX, measures.getMaxX(label));
+            assertEquals(maxY, measures.getMaxY(label));
+        }
+        // Labels missing from the image
+        assertEquals(0, LabelMeasurements.measure(labels, null, 12).getCount(12));
+    }
+
+
+    @Test
+    public void upscaledLabelsMeasuredAtNativeResolution() {
+        // Labels upscaled 2 times (each native pixel covered by 2x2 label pixels) give the native measurements with both samplings
+        ShortProcessor labels = SyntheticLabels.labels();
+        ShortProcessor fluo = SyntheticLabels.intensities(6);
+        int width = labels.getWidth(), height = labels.getHeight();
+        ShortProcessor upscaled = new ShortProcessor(2*width, 2*height);
+        for (int v = 0; v < 2*height; v++)
+            for (int u = 0; u < 2*width; u++)
+                upscaled.set(u, v, labels.get(u/2, v/2));
+        LabelMeasurements reference = LabelMeasurements.measure(labels, fluo, SyntheticLabels.maxLabel());
+        for (boolean areaWeighted : new boolean[] {true, false}) {
+            LabelGrid grid = new LabelGrid(2*width, 2*height, width, height, areaWeighted);
+            LabelMeasurements measures = LabelMeasurements.measure(upscaled, fluo, SyntheticLabels.maxLabel(), grid);
+            for (int label = 1; label <= SyntheticLabels.maxLabel(); label++) {
+                String object = "label " + label + (areaWeighted ? " (area)" : " (nearest)");
+                assertEquals(object, 4*reference.getCount(label), measures.getCount(label));
+                assertEquals(object, reference.getArea(label), measures.getArea(label), 1e-9);
+                assertEquals(object, reference.getIntensityMean(label), measures.getIntensityMean(label), 1e-9);
+                assertEquals(object, reference.getCentroidX(label), grid.toNativeX(measures.getCentroidX(label)), 1e-9);
+                assertEquals(object, reference.getCentroidY(label), grid.toNativeY(measures.getCentroidY(label)), 1e-9);
+            }
+        }
+    }
+}
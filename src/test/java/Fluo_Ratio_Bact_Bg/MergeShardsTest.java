@@ -0,0 +1,84 @@
+package Fluo_Ratio_Bact_Bg;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Merge of the results tables of shard folders written through a RunManifest
+public class MergeShardsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    // Shard folder with one checkpointed frame whose row in each results file is "<shard name> row\n"
+    private void shard(String name) throws IOException {
+        File dir = new File(folder.getRoot(), name);
+        dir.mkdir();
+        LinkedHashMap<String, byte[]> files = ResultsSink.files(false);
+        try (RunManifest manifest = RunManifest.open(dir.getPath(), "settings", files)) {
+            for (String file : files.keySet())
+                manifest.getOutput(file).write((name + " row\n").getBytes(StandardCharsets.UTF_8));
+            manifest.frameDone("image", 1, null);
+        }
+    }
+
+
+    @Test
+    public void mergesAllShards() throws IOException {
+        shard("shard_0_of_2");
+        shard("shard_1_of_2");
+        HeadlessRunner.mergeShards(folder.getRoot().getPath());
+        for (Map.Entry<String, byte[]> file : ResultsSink.files(false).entrySet()) {
+            String merged = new String(Files.readAllBytes(new File(folder.getRoot(), file.getKey()).toPath()), StandardCharsets.UTF_8);
+            assertEquals(new String(file.getValue(), StandardCharsets.UTF_8) + "shard_0_of_2 row\nshard_1_of_2 row\n", merged);
+        }
+    }
+
+
+    @Test
+    public void missingShardFails() throws IOException {
+        shard("shard_0_of_3");
+        shard("shard_2_of_3");
+        try {
+            HeadlessRunner.mergeShards(folder.getRoot().getPath());
+            fail("missing shard not reported");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("shard_1_of_3"));
+        }
+    }
+
+
+    @Test(expected = IOException.class)
+    public void shardsOfDifferentSplitsFail() throws IOException {
+        shard("shard_0_of_2");
+        shard("shard_1_of_3");
+        HeadlessRunner.mergeShards(folder.getRoot().getPath());
+    }
+
+
+    @Test(timeout = 10000)
+    public void truncatedShardFails() throws IOException {
+        shard("shard_0_of_1");
+        String name = ResultsSink.files(false).keySet().iterator().next();
+        File file = new File(new File(folder.getRoot(), "shard_0_of_1"), name);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(file.length() - 4);
+        }
+        try {
+            HeadlessRunner.mergeShards(folder.getRoot().getPath());
+            fail("truncated shard not reported");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("shorter"));
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package Fluo_Ratio_Bact_Bg;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.measure.ResultsTable;
+import ij.plugin.filter.ParticleAnalyzer;
+import ij.process.ShortProcessor;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+// Shape descriptors of the bounding box crops against the ParticleAnalyzer run on each object drawn alone in a full frame,
+// as the shape results were computed before
+public class ShapeDescriptorsTest {
+
+    // Results of the ParticleAnalyzer on the object with the given label alone in the frame, first particle
+    private static ResultsTable analyzeParticle(ShortProcessor labels, int label) {
+        ShortProcessor object = new ShortProcessor(labels.getWidth(), labels.getHeight());
+        for (int i = 0; i < labels.getPixelCount(); i++)
+            if (labels.get(i) == label)
+                object.set(i, label);
+        ImagePlus imp = new ImagePlus("object", object);
+        ResultsTable resultsTable = new ResultsTable();
+        ParticleAnalyzer particleAnalyzer = new ParticleAnalyzer(ParticleAnalyzer.CLEAR_WORKSHEET, ParticleAnalyzer.SHAPE_DESCRIPTORS+ParticleAnalyzer.LIMIT
+                +ParticleAnalyzer.AREA+ParticleAnalyzer.FERET+ParticleAnalyzer.PERIMETER, resultsTable, 0, Double.MAX_VALUE);
+        IJ.setThreshold(imp, 1, Double.MAX_VALUE);
+        particleAnalyzer.analyze(imp);
+        return(resultsTable);
+    }
+
+
+    @Test
+    public void sameValuesAsParticleAnalyzer() {
+        ShortProcessor labels = SyntheticLabels.labels();
+        LabelMeasurements measures = LabelMeasurements.measure(labels, null, SyntheticLabels.maxLabel());
+        ShapeDescriptors shape = new ShapeDescriptors();
+        for (int label = 1; label <= SyntheticLabels.maxLabel(); label++) {
+            ResultsTable rt = analyzeParticle(labels, label);
+            shape.measure(labels, label, measures.getMinX(label), measures.getMinY(label), measures.getMaxX(label), measures.getMaxY(label), 1, 1);
+            String object = "label " + label;
+            assertEquals(object, rt.getValue("Area", 0), shape.getArea(), 1e-9);
+            assertEquals(object, rt.getValue("Perim.", 0), shape.getPerimeter(), 1e-9);
+            assertEquals(object, rt.getValue("Feret", 0), shape.getFeret(), 1e-6);
+            assertEquals(object, rt.getValue("MinFeret", 0), shape.getMinFeret(), 1e-6);
+            assertEquals(object, rt.getValue("Circ.", 0), shape.getCircularity(), 1e-9);
+            assertEquals(object, rt.getValue("AR", 0), shape.getAspectRatio(), 1e-6);
+            assertEquals(object, rt.getValue("Round", 0), shape.getRoundness(), 1e-6);
+        }
+    }
+
+
+    @Test
+    public void lengthOfAllObjectPixels() {
+        // Largest distance between two pixel centers of the object, also between the parts of a split object
+        ShortProcessor labels = SyntheticLabels.labels();
+        LabelMeasurements measures = LabelMeasurements.measure(labels, null, SyntheticLabels.maxLabel());
+        ShapeDescriptors shape = new ShapeDescriptors();
+        int width = labels.getWidth();
+        for (int label = 1; label <= SyntheticLabels.maxLabel(); label++) {
+            int[] pixels = new int[measures.getCount(label)];
+            for (int i = 0, n = 0; i < labels.getPixelCount(); i++)
+                if (labels.get(i) == label)
+                    pixels[n++] = i;
+            double max = 0;
+            for (int i = 0; i < pixels.length; i++)
+                for (int j = i + 1; j < pixels.length; j++)
+                    max = Math.max(max, Math.hypot(pixels[i] % width - pixels[j] % width, pixels[i] / width - pixels[j] / width));
+            shape.measure(labels, label, measures.getMinX(label), measures.getMinY(label), measures.getMaxX(label), measures.getMaxY(label), 1, 1);
+            assertEquals("label " + label, max, shape.getLength(), 1e-9);
+        }
+    }
+
+
+    @Test
+    public void calibratedValues() {
+        ShortProcessor labels = SyntheticLabels.labels();
+        LabelMeasurements measures = LabelMeasurements.measure(labels, null, SyntheticLabels.maxLabel());
+        ShapeDescriptors pixels = new ShapeDescriptors(), microns = new ShapeDescriptors();
+        int label = 1;
+        pixels.measure(labels, label, measures.getMinX(label), measures.getMinY(label), measures.getMaxX(label), measures.getMaxY(label), 1, 1);
+        microns.measure(labels, label, measures.getMinX(label), measures.getMinY(label), measures.getMaxX(label), measures.getMaxY(label), 0.1, 0.1);
+        assertEquals(pixels.getArea()*0.01, microns.getArea(), 1e-9);
+        assertEquals(pixels.getFeret()*0.1, microns.getFeret(), 1e-9);
+        assertEquals(pixels.getMinFeret()*0.1, microns.getMinFeret(), 1e-9);
+        assertEquals(pixels.getLength()*0.1, microns.getLength(), 1e-9);
+        assertEquals(pixels.getCircularity(), microns.getCircularity(), 1e-12);
+    }
+}
@@ -0,0 +1,70 @@
+package Fluo_Ratio_Bact_Bg;
+import ij.process.ShortProcessor;
+import java.util.Random;
+
+// Label image of the shapes met in bacteria masks: rotated ellipses (rods), touching objects, an object with a hole,
+// an object split in two parts, one pixel wide lines and single pixels, with a random intensity plane
+final class SyntheticLabels {
+
+    static final int WIDTH = 160, HEIGHT = 120;
+    // Label split in two parts, the small one first in raster order
+    static final int SPLIT_LABEL = 5;
+
+    private SyntheticLabels() {
+    }
+
+
+    static ShortProcessor labels() {
+        ShortProcessor labels = new ShortProcessor(WIDTH, HEIGHT);
+        ellipse(labels, 1, 30, 30, 14, 5, 30);
+        // Touching label 1
+        ellipse(labels, 2, 47, 36, 9, 4, 100);
+        rectangle(labels, 3, 70, 10, 12, 5);
+        // Ring
+        ellipse(labels, 4, 110, 30, 12, 10, 0);
+        ellipse(labels, 0, 110, 30, 5, 4, 0);
+        rectangle(labels, SPLIT_LABEL, 12, 60, 3, 3);
+        ellipse(labels, SPLIT_LABEL, 40, 90, 16, 6, -20);
+        // One pixel wide diagonal and horizontal lines
+        for (int i = 0; i < 15; i++)
+            labels.set(80 + i, 60 + i, 6);
+        for (int i = 0; i < 12; i++)
+            labels.set(120 + i, 70, 7);
+        labels.set(140, 100, 8);
+        ellipse(labels, 9, 100, 100, 7.3, 3.1, 63);
+        return(labels);
+    }
+
+
+    static ShortProcessor intensities(long seed) {
+        Random random = new Random(seed);
+        ShortProcessor ip = new ShortProcessor(WIDTH, HEIGHT);
+        for (int i = 0; i < WIDTH*HEIGHT; i++)
+            ip.set(i, 500 + random.nextInt(3000));
+        return(ip);
+    }
+
+
+    static int maxLabel() {
+        return(9);
+    }
+
+
+    // Filled ellipse with semi-axes a and b, a at angle degrees from the x axis
+    private static void ellipse(ShortProcessor labels, int label, double cx, double cy, double a, double b, double angle) {
+        double cos = Math.cos(Math.toRadians(angle)), sin = Math.sin(Math.toRadians(angle));
+        for (int y = 0; y < HEIGHT; y++)
+            for (int x = 0; x < WIDTH; x++) {
+                double u = (x - cx)*cos + (y - cy)*sin, v = -(x - cx)*sin + (y - cy)*cos;
+                if (u*u/(a*a) + v*v/(b*b) <= 1)
+                    labels.set(x, y, label);
+            }
+    }
+
+
+    private static void rectangle(ShortProcessor labels, int label, int x0, int y0, int width, int height) {
+        for (int y = y0; y < y0 + height; y++)
+            for (int x = x0; x < x0 + width; x++)
+                labels.set(x, y, label);
+    }
+}
@@ -0,0 +1,138 @@
+package Fluo_Ratio_Bact_Bg;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Tiled segmentation against full-frame segmentation, with a stub backend labelling the connected components of the
+// non-zero pixels, on frames of rods crossing the tile seams
+public class TiledBackendTest {
+
+    private static final int WIDTH = 330, HEIGHT = 210;
+
+
+    // Connected components (4-connectivity) of the non-zero pixels of each plane, labelled in scan order
+    private static final SegmentationBackend COMPONENTS = new SegmentationBackend() {
+        @Override
+        public ImageProcessor[] segment(ImageStack frames, String imageName, int[] frameNumbers) {
+            ImageProcessor[] masks = new ImageProcessor[frames.getSize()];
+            for (int i = 0; i < masks.length; i++)
+                masks[i] = components(frames.getProcessor(i + 1));
+            return(masks);
+        }
+
+        @Override
+        public String settings() {
+            return(null);
+        }
+    };
+
+
+    private static ImageProcessor components(ImageProcessor ip) {
+        int w = ip.getWidth(), h = ip.getHeight();
+        short[] labels = new short[w*h];
+        int[] stack = new int[w*h];
+        int nLabels = 0;
+        for (int p = 0; p < w*h; p++) {
+            if (ip.getf(p) == 0 || labels[p] != 0)
+                continue;
+            labels[p] = (short) ++nLabels;
+            int top = 0;
+            stack[top++] = p;
+            while (top > 0) {
+                int q = stack[--top], x = q % w, y = q / w;
+                int[] next = {(x > 0) ? q - 1 : -1, (x < w - 1) ? q + 1 : -1, (y > 0) ? q - w : -1, (y < h - 1) ? q + w : -1};
+                for (int n : next)
+                    if (n >= 0 && ip.getf(n) != 0 && labels[n] == 0) {
+                        labels[n] = (short) nLabels;
+                        stack[top++] = n;
+                    }
+            }
+        }
+        return(new ShortProcessor(w, h, labels, null));
+    }
+
+
+    // Horizontal and vertical rods of 4 x 25 pixels at random places, one pixel apart at least
+    private static ImageStack rods(int nFrames, long seed) {
+        Random random = new Random(seed);
+        ImageStack frames = new ImageStack(WIDTH, HEIGHT);
+        for (int f = 0; f < nFrames; f++) {
+            ShortProcessor ip = new ShortProcessor(WIDTH, HEIGHT);
+            for (int n = 0; n < 80; n++) {
+                boolean horizontal = random.nextBoolean();
+                int w = horizontal ? 25 : 4, h = horizontal ? 4 : 25;
+                int x = random.nextInt(WIDTH - w), y = random.nextInt(HEIGHT - h);
+                boolean free = true;
+                for (int yy = Math.max(0, y - 1); yy < Math.min(HEIGHT, y + h + 1); yy++)
+                    for (int xx = Math.max(0, x - 1); xx < Math.min(WIDTH, x + w + 1); xx++)
+                        free = free && ip.get(xx, yy) == 0;
+                if (!free)
+                    continue;
+                ip.setValue(1000);
+                ip.setRoi(x, y, w, h);
+                ip.fill();
+            }
+            ip.resetRoi();
+            frames.addSlice("t" + (f + 1), ip);
+        }
+        return(frames);
+    }
+
+
+    // Same objects up to their numbering: a one to one label mapping between the two label images
+    private static void assertSameObjects(ImageProcessor expected, ImageProcessor actual) {
+        Map<Integer, Integer> toActual = new HashMap<>(), toExpected = new HashMap<>();
+        for (int p = 0; p < expected.getPixelCount(); p++) {
+            int e = (int) expected.getf(p), a = (int) actual.getf(p);
+            assertEquals("background at pixel " + p, e == 0, a == 0);
+            if (e == 0)
+                continue;
+            assertEquals("label at pixel " + p, (Integer) a, toActual.computeIfAbsent(e, k -> a));
+            assertEquals("label at pixel " + p, (Integer) e, toExpected.computeIfAbsent(a, k -> e));
+        }
+    }
+
+
+    @Test
+    public void positionsCoverTheSide() {
+        for (int length : new int[] {50, 100, 101, 330, 1000})
+            for (int overlap : new int[] {0, 30, 64}) {
+                int[] positions = TiledBackend.positions(length, 100, overlap);
+                assertEquals(0, positions[0]);
+                assertEquals(Math.max(0, length - 100), positions[positions.length - 1]);
+                for (int i = 1; i < positions.length; i++)
+                    assertTrue(positions[i] > positions[i-1] && positions[i] <= positions[i-1] + 100 - overlap);
+            }
+    }
+
+
+    @Test
+    public void tilesGiveTheFullFrameObjects() {
+        ImageStack frames = rods(3, 1);
+        int[] frameNumbers = {1, 2, 3};
+        ImageProcessor[] full = COMPONENTS.segment(frames, "image", frameNumbers);
+        // 4 x 3 tiles of 100 pixels overlapping by 40 pixels, many rods cross the seams
+        ImageProcessor[] tiled = new TiledBackend(COMPONENTS, 100, 40).segment(frames, "image", frameNumbers);
+        assertEquals(full.length, tiled.length);
+        for (int i = 0; i < full.length; i++) {
+            assertEquals(WIDTH, tiled[i].getWidth());
+            assertEquals(HEIGHT, tiled[i].getHeight());
+            assertSameObjects(full[i], tiled[i]);
+        }
+    }
+
+
+    @Test
+    public void frameSmallerThanATileIsSegmentedWhole() {
+        ImageStack frames = rods(1, 2);
+        ImageProcessor[] full = COMPONENTS.segment(frames, "image", new int[] {1});
+        ImageProcessor[] tiled = new TiledBackend(COMPONENTS, 400, 64).segment(frames, "image", new int[] {1});
+        assertSameObjects(full[0], tiled[0]);
+    }
+}
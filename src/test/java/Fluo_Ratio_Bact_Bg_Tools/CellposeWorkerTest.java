@@ -0,0 +1,183 @@
+package Fluo_Ratio_Bact_Bg_Tools;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Worker protocol, error replies and restarts with a stub worker script (src/test/resources) run by the system python
+// in place of the Omnipose environment
+public class CellposeWorkerTest {
+
+    private static final int WIDTH = 7, HEIGHT = 5;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File state;
+    private CellposeTaskSettings settings;
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private CellposeWorker worker;
+
+
+    // Conda environment folder whose bin/python is the system python3
+    @Before
+    public void setUp() throws IOException, URISyntaxException {
+        File python = null;
+        for (String dir : System.getenv("PATH").split(File.pathSeparator))
+            if (python == null && new File(dir, "python3").canExecute())
+                python = new File(dir, "python3");
+        Assume.assumeTrue("python3 needed to run the stub worker", python != null && !System.getProperty("os.name").startsWith("Windows"));
+        File env = folder.newFolder("env");
+        File bin = new File(env, "bin");
+        bin.mkdir();
+        Files.createSymbolicLink(new File(bin, "python").toPath(), python.toPath());
+        state = folder.newFolder("state");
+        settings = new CellposeTaskSettings(state.getPath(), 0, 30, env.getPath());
+        settings.output = new PrintStream(output, true, "UTF-8");
+        settings.setRetries(3, 10);
+        String script = new File(CellposeWorkerTest.class.getResource("/cellpose_worker_stub.py").toURI()).getPath();
+        worker = new CellposeWorker(settings, script);
+    }
+
+
+    @After
+    public void tearDown() {
+        if (worker != null)
+            worker.stop();
+    }
+
+
+    private int starts() throws IOException {
+        File starts = new File(state, "starts");
+        return(starts.exists() ? Files.readAllLines(starts.toPath()).size() : 0);
+    }
+
+
+    // Frame whose first pixel selects the stub behaviour, other pixels from 0 to 34000
+    private static short[] frame(int first) {
+        short[] pixels = new short[WIDTH*HEIGHT];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = (short) (1000*i);
+        pixels[0] = (short) first;
+        return(pixels);
+    }
+
+
+    private static short[] expectedMask(short[] pixels) {
+        short[] mask = new short[pixels.length];
+        for (int i = 0; i < pixels.length; i++)
+            mask[i] = (short) ((pixels[i] & 0xffff) / 1000);
+        return(mask);
+    }
+
+
+    @Test
+    public void framesWithOneWorker() throws IOException {
+        for (int n = 0; n < 3; n++) {
+            short[] pixels = frame(0);
+            assertArrayEquals(expectedMask(pixels), worker.segment(pixels, WIDTH, HEIGHT));
+        }
+        assertTrue(worker.isAlive());
+        assertEquals(1, starts());
+    }
+
+
+    @Test
+    public void errorReplyStopsWorker() throws IOException {
+        try {
+            worker.segment(frame(1), WIDTH, HEIGHT);
+            fail("error reply not reported");
+        } catch (CellposeException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("stub error"));
+        }
+        assertFalse(worker.isAlive());
+        // A new worker segments the next frame
+        short[] pixels = frame(0);
+        assertArrayEquals(expectedMask(pixels), worker.segment(pixels, WIDTH, HEIGHT));
+        assertEquals(2, starts());
+    }
+
+
+    @Test
+    public void outOfSyncReplyDoesNotReachNextFrame() throws IOException {
+        try {
+            worker.segment(frame(3), WIDTH, HEIGHT);
+            fail("unexpected reply not reported");
+        } catch (CellposeException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("OK\t" + (2*WIDTH*HEIGHT + 2)));
+        }
+        short[] pixels = frame(0);
+        assertArrayEquals(expectedMask(pixels), worker.segment(pixels, WIDTH, HEIGHT));
+    }
+
+
+    @Test
+    public void crashedWorkerIsRestarted() throws IOException {
+        short[] pixels = frame(2);
+        assertArrayEquals(expectedMask(pixels), worker.segment(pixels, WIDTH, HEIGHT));
+        assertEquals(2, starts());
+        assertTrue(output.toString("UTF-8").contains("restarting"));
+    }
+
+
+    @Test
+    public void crashWithoutRestart() throws IOException {
+        worker.setMaxRestarts(0);
+        try {
+            worker.segment(frame(2), WIDTH, HEIGHT);
+            fail("crash not reported");
+        } catch (CellposeException.Exit ex) {
+            assertEquals(3, ex.getExitValue());
+            assertTrue(ex.getOutput(), ex.getOutput().contains("frame " + WIDTH + "x" + HEIGHT));
+        }
+        assertEquals(1, starts());
+    }
+
+
+    @Test(expected = CellposeException.Timeout.class)
+    public void hungWorkerIsKilled() throws IOException {
+        settings.setTimeout(1000);
+        worker.setMaxRestarts(0);
+        worker.segment(frame(4), WIDTH, HEIGHT);
+    }
+
+
+    @Test
+    public void hungStartIsRestarted() throws IOException {
+        settings.setTimeout(1000);
+        new File(state, "hang_start").createNewFile();
+        short[] pixels = frame(0);
+        assertArrayEquals(expectedMask(pixels), worker.segment(pixels, WIDTH, HEIGHT));
+        assertEquals(2, starts());
+        assertTrue(output.toString("UTF-8").contains("timed out"));
+    }
+
+
+    @Test
+    public void imageFiles() throws IOException {
+        File image = folder.newFile("image.tif"), mask = new File(folder.getRoot(), "image_cp_masks.tif");
+        Files.write(image.toPath(), "pixels".getBytes(StandardCharsets.UTF_8));
+        worker.segment(image, mask);
+        assertTrue(Arrays.equals(Files.readAllBytes(image.toPath()), Files.readAllBytes(mask.toPath())));
+        try {
+            worker.segment(folder.newFile("error.tif"), mask);
+            fail("error reply not reported");
+        } catch (CellposeException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("stub error"));
+        }
+    }
+}
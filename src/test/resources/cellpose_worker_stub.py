@@ -0,0 +1,72 @@
+# Stub of cellpose_worker.py speaking the same protocol without Cellpose, for the CellposeWorker tests
+# --pretrained_model is a state folder: each start appends a line to <folder>/starts, a start finding <folder>/hang_start
+# deletes it and never answers READY (model load hanging)
+# Masks of in-memory frames are pixel // 1000, the first pixel of a frame selects a failure:
+#   1: "ERROR" reply
+#   2: crash (exit 3) once, <folder>/crashed remembers it so that the restarted worker segments the frame
+#   3: reply announcing 2 more bytes than the frame (out of sync worker)
+#   4: no reply
+# SEG copies the input file to the mask file, "ERROR" reply if the input file name contains "error"
+import argparse
+import os
+import shutil
+import struct
+import sys
+import time
+
+protocol = sys.stdout.buffer
+requests = sys.stdin.buffer
+sys.stdout = sys.stderr
+
+
+def reply(msg, data=None):
+    protocol.write((msg + "\n").encode("utf-8"))
+    if data is not None:
+        protocol.write(data)
+    protocol.flush()
+
+
+parser = argparse.ArgumentParser()
+parser.add_argument("--pretrained_model")
+args, _ = parser.parse_known_args()
+state = args.pretrained_model
+
+with open(os.path.join(state, "starts"), "a") as starts:
+    starts.write("start\n")
+if os.path.exists(os.path.join(state, "hang_start")):
+    os.remove(os.path.join(state, "hang_start"))
+    time.sleep(60)
+print("stub model loaded", flush=True)
+reply("READY")
+
+for line in iter(requests.readline, b""):
+    fields = line.decode("utf-8").rstrip("\n").split("\t")
+    if fields[0] == "QUIT":
+        break
+    if fields[0] == "FRAME" and len(fields) == 4:
+        nbytes = int(fields[3])
+        data = requests.read(nbytes)
+        pixels = struct.unpack("<%dH" % (nbytes // 2), data)
+        first = pixels[0] if pixels else 0
+        print("frame %sx%s" % (fields[1], fields[2]), flush=True)
+        if first == 1:
+            reply("ERROR stub error")
+        elif first == 2 and not os.path.exists(os.path.join(state, "crashed")):
+            open(os.path.join(state, "crashed"), "w").close()
+            sys.exit(3)
+        elif first == 3:
+            reply("OK\t" + str(nbytes + 2), bytes(nbytes + 2))
+        elif first == 4:
+            time.sleep(60)
+        else:
+            out = struct.pack("<%dH" % len(pixels), *[p // 1000 for p in pixels])
+            reply("OK\t" + str(len(out)), out)
+        continue
+    if fields[0] == "SEG" and len(fields) == 3:
+        if "error" in os.path.basename(fields[1]):
+            reply("ERROR stub error")
+        else:
+            shutil.copyfile(fields[1], fields[2])
+            reply("OK")
+        continue
+    reply("ERROR bad request")